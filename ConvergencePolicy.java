@@ -0,0 +1,193 @@
+package prefux.action.layout.graph;
+
+import java.time.Duration;
+
+/**
+ * Decides when GEM stops running rounds on a graph. After every round the
+ * policy is told how the round went, and the rounds stop as soon as it
+ * reports convergence. The round limits of the layouts (4 rounds per node,
+ * and the refinement rounds of the multilevel mode) always apply on top.
+ *
+ * In the multilevel mode every level is a graph of its own: start() is
+ * called again for every level. A policy that keeps state between rounds
+ * must override copy(): every run of a layout starts with a fresh copy of
+ * the policy, and the component mode lays out every connected component
+ * with a copy of its own and runs them at the same time.
+ *
+ * The built-in policies can be combined with or(). For example
+ * temperature(3).or(plateau(20, 0.01)) stops at the usual temperature, or
+ * as soon as the temperature has not dropped by at least 1% over the last
+ * 20 rounds, whatever happens first.
+ */
+public interface ConvergencePolicy {
+
+	/**
+	 * Called before the first round on a graph.
+	 * @param nodes the number of nodes of the graph
+	 */
+	default void start(int nodes) {
+	}
+
+	/**
+	 * Called after every round.
+	 * @param round the number of rounds run on the graph, starting at 1
+	 * @param temperature the average temperature of the nodes that move
+	 * @param displacement the average distance the nodes that move have moved in the round
+	 * @param elapsed the time since the layout was started in nanoseconds,
+	 * including the pauses between calls to step() or runFor()
+	 * @return true if no more rounds should be run on the graph
+	 */
+	boolean isConverged(int round, double temperature, double displacement, long elapsed);
+
+	/**
+	 * Returns a policy that decides the same way as this one, but keeps
+	 * its own state. A policy without state can return itself, which is
+	 * what this method does by default.
+	 * @return the copy
+	 */
+	default ConvergencePolicy copy() {
+		return this;
+	}
+
+	/**
+	 * Returns a policy that reports convergence when this policy or the
+	 * other one does. Both are told about every round.
+	 * @param other the other policy
+	 * @return the combined policy
+	 */
+	default ConvergencePolicy or(ConvergencePolicy other) {
+		ConvergencePolicy first = this;
+		return new ConvergencePolicy() {
+
+			@Override
+			public void start(int nodes) {
+				first.start(nodes);
+				other.start(nodes);
+			}
+
+			@Override
+			public boolean isConverged(int round, double temperature, double displacement, long elapsed) {
+				boolean a = first.isConverged(round, temperature, displacement, elapsed);
+				boolean b = other.isConverged(round, temperature, displacement, elapsed);
+				return a || b;
+			}
+
+			@Override
+			public ConvergencePolicy copy() {
+				return first.copy().or(other.copy());
+			}
+		};
+	}
+
+	/**
+	 * The original rule of GEM: stops when the average temperature has
+	 * dropped below the desired temperature. This is the default, with 3.
+	 * @param desiredTemp the desired temperature
+	 * @return the policy
+	 */
+	static ConvergencePolicy temperature(double desiredTemp) {
+		return (round, temperature, displacement, elapsed) -> temperature < desiredTemp;
+	}
+
+	/**
+	 * Stops after a fixed number of rounds.
+	 * @param rounds the number of rounds
+	 * @return the policy
+	 */
+	static ConvergencePolicy rounds(int rounds) {
+		return (round, temperature, displacement, elapsed) -> round >= rounds;
+	}
+
+	/**
+	 * Stops after a number of rounds that grows with the size of the graph,
+	 * like the limit of 4 rounds per node that the layouts use.
+	 * @param roundsPerNode the number of rounds per node
+	 * @return the policy
+	 */
+	static ConvergencePolicy roundsPerNode(double roundsPerNode) {
+		return new ConvergencePolicy() {
+
+			private double limit;
+
+			@Override
+			public void start(int nodes) {
+				limit = roundsPerNode * nodes;
+			}
+
+			@Override
+			public boolean isConverged(int round, double temperature, double displacement, long elapsed) {
+				return round >= limit;
+			}
+
+			@Override
+			public ConvergencePolicy copy() {
+				return roundsPerNode(roundsPerNode);
+			}
+		};
+	}
+
+	/**
+	 * Stops when the temperature has reached a plateau: when the average
+	 * temperature over the last window rounds is less than minDrop (as a
+	 * fraction) below the average over the window rounds before them. On
+	 * large graphs the temperature often hovers just above the desired
+	 * temperature for a long time, this cuts those rounds off.
+	 * @param window the number of rounds averaged, at least 1
+	 * @param minDrop the smallest relative drop that counts as progress, for example 0.01
+	 * @return the policy
+	 */
+	static ConvergencePolicy plateau(int window, double minDrop) {
+		int w = Math.max(1, window);
+		return new ConvergencePolicy() {
+
+			// The temperatures of the last 2 * w rounds.
+			private final double[] history = new double[2 * w];
+
+			@Override
+			public boolean isConverged(int round, double temperature, double displacement, long elapsed) {
+
+				history[(round - 1) % history.length] = temperature;
+				if(round < history.length) {
+					return false;
+				}
+
+				// The older window starts right after the newest round in the ring.
+				double older = 0;
+				double newer = 0;
+				for(int k = 0; k < w; ++k) {
+					older += history[(round + k) % history.length];
+					newer += history[(round + w + k) % history.length];
+				}
+				return newer > older * (1 - minDrop);
+			}
+
+			@Override
+			public ConvergencePolicy copy() {
+				return plateau(window, minDrop);
+			}
+		};
+	}
+
+	/**
+	 * Stops when the nodes have hardly moved: when the average distance the
+	 * nodes moved in a round is below a limit. For comparison, the desired
+	 * edge length is 128.
+	 * @param minDisplacement the smallest average distance that counts as moving
+	 * @return the policy
+	 */
+	static ConvergencePolicy displacement(double minDisplacement) {
+		return (round, temperature, displacement, elapsed) -> displacement < minDisplacement;
+	}
+
+	/**
+	 * Stops once the layout has been running for a given time. In the
+	 * multilevel mode, the levels that are reached after that still get
+	 * one round each.
+	 * @param limit the time limit
+	 * @return the policy
+	 */
+	static ConvergencePolicy timeLimit(Duration limit) {
+		long nanos = limit.toNanos();
+		return (round, temperature, displacement, elapsed) -> elapsed >= nanos;
+	}
+}
@@ -0,0 +1,197 @@
+package prefux.action.layout.graph;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.Logger;
+
+import javafx.animation.AnimationTimer;
+import prefux.visual.VisualItem;
+
+/*
+ * Runs the rounds of a layout on a worker thread, so that the JavaFX
+ * application thread stays free to handle touches and to draw frames.
+ *
+ * The worker never touches the visual items. It publishes copies of the
+ * coordinates instead, and a handler that is called on every JavaFX pulse
+ * copies the newest one into the items. The copies are exchanged through
+ * atomic references: the worker fills a spare buffer and swaps it in as
+ * the newest one, the pulse handler takes the newest one and hands it back
+ * as the spare once it has been copied. Neither side ever waits for the
+ * other, and a buffer is never written while it is being read.
+ *
+ * If the rounds throw, the exception is logged and the run is marked as
+ * failed. The pulse handler then stops and cleans up as usual, but calls
+ * the failure handler of the layout instead of its finish handler.
+ */
+final class GemBackgroundRunner {
+
+	// The thread that runs the layouts, shared by all the layouts.
+	private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "GEM layout");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/*
+	 * The coordinates of the nodes of an engine at one point in time.
+	 */
+	private static final class Frame {
+
+		// The index of the item of every node.
+		private int[] ids;
+
+		// The coordinates, x and y of every node after each other.
+		private double[] xy = new double[0];
+
+		// The number of nodes.
+		private int n;
+	}
+
+	// The newest frame that has not been copied into the items yet.
+	private final AtomicReference<Frame> newest = new AtomicReference<>();
+
+	// A frame that can be filled again.
+	private final AtomicReference<Frame> spare = new AtomicReference<>();
+
+	// Copies the frames into the items on every pulse while a layout runs.
+	private final AnimationTimer timer = new AnimationTimer() {
+		@Override
+		public void handle(long now) {
+			pulse();
+		}
+	};
+
+	// The logger of the layout the rounds belong to.
+	private final Logger log;
+
+	// The items the published frames belong to.
+	private VisualItem[] items;
+
+	// Called on the JavaFX application thread once the worker is done.
+	private Runnable finish;
+
+	// Called on the JavaFX application thread instead of finish if the rounds have thrown.
+	private Runnable failure;
+
+	// Set by the worker once it is done.
+	private volatile boolean done;
+
+	// Set by the worker before done if the rounds have thrown.
+	private volatile boolean failed;
+
+	// True from start() until finish or failure has returned, so that a
+	// layout that finds it false sees everything the handler has done.
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a runner.
+	 * @param log the logger of the layout, used to report a failed run
+	 */
+	GemBackgroundRunner(Logger log) {
+		this.log = log;
+	}
+
+	/**
+	 * Returns whether a layout is running.
+	 * @return true if a layout is running
+	 */
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Runs a layout on the worker thread. Must be called on the JavaFX
+	 * application thread, and not while another layout is running.
+	 * @param items the items the nodes passed to {@link #publish(GemEngine)} belong to
+	 * @param layout the rounds, run on the worker thread
+	 * @param finish called on the JavaFX application thread when the layout is done,
+	 * after the last published frame has been copied into the items
+	 * @param failure called on the JavaFX application thread instead of finish
+	 * if the layout has thrown
+	 */
+	void start(VisualItem[] items, Runnable layout, Runnable finish, Runnable failure) {
+
+		this.items = items;
+		this.finish = finish;
+		this.failure = failure;
+		done = false;
+		failed = false;
+		running = true;
+		timer.start();
+
+		WORKER.execute(() -> {
+			try {
+				layout.run();
+			} catch(RuntimeException | Error e) {
+				log.error("The layout failed.", e);
+				failed = true;
+			} finally {
+				done = true;
+			}
+		});
+	}
+
+	/**
+	 * Publishes the coordinates of the nodes of an engine. The ids of the
+	 * engine are the indices of the items. Called on the worker thread.
+	 * @param e the engine holding the nodes
+	 */
+	void publish(GemEngine e) {
+
+		Frame frame = spare.getAndSet(null);
+		if(frame == null) {
+			frame = new Frame();
+		}
+		if(frame.xy.length < 2 * e.n) {
+			frame.xy = new double[2 * e.n];
+		}
+
+		frame.ids = e.ids;
+		frame.n = e.n;
+		for(int i = 0; i < e.n; ++i) {
+			frame.xy[2 * i] = e.x.get(i);
+			frame.xy[2 * i + 1] = e.y.get(i);
+		}
+
+		// A frame that has not been copied in time is skipped and reused.
+		Frame skipped = newest.getAndSet(frame);
+		if(skipped != null) {
+			spare.set(skipped);
+		}
+	}
+
+	/**
+	 * Copies the newest frame into the items, and finishes the layout once
+	 * the worker is done, or calls the failure handler if it has failed.
+	 */
+	private void pulse() {
+
+		// Read the flag first: if it is set, the last frame is already published.
+		boolean finished = done;
+
+		Frame frame = newest.getAndSet(null);
+		if(frame != null) {
+			for(int i = 0; i < frame.n; ++i) {
+				VisualItem item = items[frame.ids[i]];
+				item.setX(frame.xy[2 * i]);
+				item.setY(frame.xy[2 * i + 1]);
+			}
+			spare.set(frame);
+		}
+
+		if(finished) {
+			timer.stop();
+			items = null;
+			Runnable handler = failed ? failure : finish;
+			finish = null;
+			failure = null;
+			try {
+				handler.run();
+			} finally {
+				running = false;
+			}
+		}
+	}
+}
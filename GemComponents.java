@@ -0,0 +1,144 @@
+package prefux.action.layout.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * The connected components of a graph, used by the component mode of GEM.
+ * Nodes in different components never pull at each other, so every
+ * component can be laid out on its own, without the repulsion between
+ * components. The components are then packed next to each other like
+ * rectangles: they are sorted by height and put on shelves, rows that are
+ * about as wide as the packing is high.
+ */
+final class GemComponents {
+
+	private GemComponents() {
+	}
+
+	/**
+	 * Finds the connected components of a graph.
+	 * @param g the engine holding the graph
+	 * @return the nodes of every component, the largest component first
+	 */
+	static int[][] find(GemEngine g) {
+
+		int[] component = new int[g.n];
+		Arrays.fill(component, -1);
+		int[] queue = new int[g.n];
+		List<int[]> components = new ArrayList<>();
+
+		for(int start = 0; start < g.n; ++start) {
+
+			if(component[start] != -1) {
+				continue;
+			}
+
+			// Breadth first search from the first node that has no component yet.
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = start;
+			component[start] = components.size();
+			while(head < tail) {
+				int v = queue[head++];
+				for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+					int u = g.targets.get(e);
+					if(component[u] == -1) {
+						component[u] = components.size();
+						queue[tail++] = u;
+					}
+				}
+			}
+
+			int[] nodes = Arrays.copyOf(queue, tail);
+			Arrays.sort(nodes);
+			components.add(nodes);
+		}
+
+		components.sort(Comparator.comparingInt((int[] c) -> c.length).reversed());
+		return components.toArray(new int[components.size()][]);
+	}
+
+	/**
+	 * Packs the components of a graph next to each other, centered at the
+	 * origin, and copies the packed positions and the rest of the state of
+	 * the nodes into the engine of the graph. The engines of the components
+	 * keep their own positions.
+	 * @param whole the engine holding the whole graph
+	 * @param parts the engines of the components, created by {@link GemEngine#subgraph(int[])} of whole
+	 * @param gap the space between two components
+	 */
+	static void pack(GemEngine whole, GemEngine[] parts, double gap) {
+
+		// The bounding box of every component, with the gap around it.
+		double[] minX = new double[parts.length];
+		double[] minY = new double[parts.length];
+		double[] width = new double[parts.length];
+		double[] height = new double[parts.length];
+		double area = 0;
+		double widest = 0;
+		for(int c = 0; c < parts.length; ++c) {
+			GemEngine p = parts[c];
+			double maxX = -Double.MAX_VALUE;
+			double maxY = -Double.MAX_VALUE;
+			minX[c] = Double.MAX_VALUE;
+			minY[c] = Double.MAX_VALUE;
+			for(int k = 0; k < p.n; ++k) {
+				minX[c] = Math.min(minX[c], p.x.get(k));
+				minY[c] = Math.min(minY[c], p.y.get(k));
+				maxX = Math.max(maxX, p.x.get(k));
+				maxY = Math.max(maxY, p.y.get(k));
+			}
+			width[c] = maxX - minX[c] + gap;
+			height[c] = maxY - minY[c] + gap;
+			area += width[c] * height[c];
+			widest = Math.max(widest, width[c]);
+		}
+
+		// The highest components first, on shelves about as wide as the packing is high.
+		Integer[] sorted = new Integer[parts.length];
+		for(int c = 0; c < parts.length; ++c) {
+			sorted[c] = c;
+		}
+		Arrays.sort(sorted, Comparator.comparingDouble((Integer c) -> height[c]).reversed());
+		double shelfWidth = Math.max(widest, Math.sqrt(area));
+
+		double[] left = new double[parts.length];
+		double[] top = new double[parts.length];
+		double shelfX = 0;
+		double shelfY = 0;
+		double shelfHeight = 0;
+		double usedWidth = 0;
+		for(int c : sorted) {
+			if(shelfX > 0 && shelfX + width[c] > shelfWidth) {
+				shelfY += shelfHeight;
+				shelfX = 0;
+				shelfHeight = 0;
+			}
+			left[c] = shelfX;
+			top[c] = shelfY;
+			shelfX += width[c];
+			shelfHeight = Math.max(shelfHeight, height[c]);
+			usedWidth = Math.max(usedWidth, shelfX);
+		}
+		double centerX = usedWidth / 2;
+		double centerY = (shelfY + shelfHeight) / 2;
+
+		for(int c = 0; c < parts.length; ++c) {
+			GemEngine p = parts[c];
+			double dx = left[c] + gap / 2 - minX[c] - centerX;
+			double dy = top[c] + gap / 2 - minY[c] - centerY;
+			for(int k = 0; k < p.n; ++k) {
+				int v = p.ids[k];
+				whole.x.put(v, p.x.get(k) + dx);
+				whole.y.put(v, p.y.get(k) + dy);
+				whole.temp.put(v, p.temp.get(k));
+				whole.skew.put(v, p.skew.get(k));
+				whole.impX.put(v, p.impX.get(k));
+				whole.impY.put(v, p.impY.get(k));
+			}
+		}
+	}
+}
@@ -17,6 +17,7 @@ import javafx.scene.paint.Paint;
 import javafx.scene.shape.Circle;
 import javafx.scene.shape.Line;
 import prefux.action.Action;
+import prefux.action.layout.graph.GraphEmbedderLayout2;
 import prefux.data.Edge;
 import prefux.data.Node;
 import prefux.visual.NodeItem;
@@ -50,6 +51,20 @@ public class GemControl2 extends ControlAdapter {
     // A list of all the currently selected items.
     private List<VisualItem> selectedItems = new ArrayList<>();
     
+    // The layout that is told about the items that are shown and hidden, can be null.
+    private GraphEmbedderLayout2 layout;
+    
+    public GemControl2() {
+    }
+    
+    /**
+     * Creates a control that tells the layout about the items it shows
+     * and hides, see {@link GraphEmbedderLayout2#setVisibilityTracking(boolean)}.
+     */
+    public GemControl2(GraphEmbedderLayout2 layout) {
+    	this.layout = layout;
+    }
+    
 	@Override
 	public void itemEvent(VisualItem item, Event e) {
 		
@@ -215,6 +230,10 @@ public class GemControl2 extends ControlAdapter {
 			
 			VisualItem item = (VisualItem) child;
 			item.setVisible(false);
+			
+			if(layout != null) {
+				layout.itemHidden(item);
+			}
 		}
     }
     
@@ -249,6 +268,10 @@ public class GemControl2 extends ControlAdapter {
 			// All the items will be expanded.
 			item.setExpanded(true);
 			item.setVisible(true);
+			
+			if(layout != null) {
+				layout.itemShown(item);
+			}
 		}
     }
     
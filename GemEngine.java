@@ -0,0 +1,1306 @@
+package prefux.action.layout.graph;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * The state and the rounds of GEM, shared by GraphEmbedderLayout and
+ * GraphEmbedderLayout2. The nodes are numbered from 0 to n - 1 and their
+ * state is stored in buffers, one entry per node, which live wherever the
+ * GemMemory of the engine puts them: on the heap, in direct memory or in
+ * mapped files. The neighbors are stored in compressed sparse row form:
+ * the neighbors of node i are targets[offsets[i]] to
+ * targets[offsets[i + 1] - 1].
+ *
+ * The repulsion loop scans the coordinates of all the nodes for every node,
+ * so the rounds read them from arrays, scanX and scanY: the arrays of the
+ * buffers on the heap, copies made at the start of every round otherwise.
+ *
+ * So an engine whose buffers are off the heap still keeps about 25 bytes
+ * per node on the heap: scanX and scanY, the fixed flags, the ids and the
+ * order of the rounds. The quadtree and the mesh of the approximations are
+ * on the heap too. The layouts gather the neighbors in arrays on the heap,
+ * which are copied into the buffers. Off the heap thus lowers the heap an
+ * engine keeps while it runs, by the other 36 bytes per node and 4 bytes
+ * per neighbor, but not the peak while it is built.
+ *
+ * The engine knows nothing about visual items. The layouts copy the
+ * coordinates in and out, and map node i to an item through ids[i].
+ */
+final class GemEngine {
+
+	/* ---------------- Settings, copied by copySettings() ---------------- */
+
+	// The method used to calculate the repulsive forces.
+	RepulsionMode repulsionMode = RepulsionMode.EXACT;
+
+	// The opening angle used by the Barnes-Hut approximation.
+	double theta = 0.8;
+
+	// The number of mesh points along each axis used by the grid approximation.
+	int gridSize = 256;
+
+	// The method used to calculate the distance between nodes.
+	// If set to true: Euclidean distance is used.
+	// If set to false: Manhattan distance is used, which RepulsionMode.GRID does not support.
+	boolean euclideanDistance = true;
+
+	// If set to true: the impulses are calculated in parallel, in batches.
+	boolean parallel = false;
+
+	// The number of nodes in every batch of the parallel mode.
+	int batchSize = 1024;
+
+	// The pool that runs the parallel mode.
+	ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	// If set to true: the repulsion of the fixed nodes is taken from a
+	// quadtree that is built once, and only the nodes that move repel
+	// each other as set by repulsionMode.
+	boolean frozenFarField = false;
+
+	// The highest temperature allowed is multiplied with this factor after
+	// every round. 1 keeps it at maxTemp, lower values cool the nodes down
+	// faster the longer the engine runs.
+	double coolingFactor = 1;
+
+	// If set to true: nodes that have stayed calm for PARK_ROUNDS rounds
+	// are parked. A parked node is only moved every REVISIT_INTERVAL
+	// rounds, until one of its neighbors moves by WAKE_DISTANCE or more.
+	boolean adaptiveScheduling = false;
+
+	// A node is calm in a round if both its temperature and the distance
+	// it moved are below this.
+	double parkTemperature = 4;
+
+	// If set to true: instead of shuffling all the nodes, the nodes are
+	// sorted along a Z-order (Morton) curve every SORT_INTERVAL rounds and
+	// cut into blocks of BLOCK_SIZE nodes that are close to each other.
+	// Every round visits the blocks in random order and the nodes of a
+	// block in random order, so nodes that are moved one after another
+	// look at the same parts of the quadtree and the mesh.
+	boolean spatialOrder = false;
+
+	// If set to true: the exact mode scans a single precision copy of the
+	// coordinates with GemRepulsionKernel, which reads half the memory and
+	// can use the JDK Vector API. Everything else stays in double precision.
+	boolean singlePrecision = false;
+
+	// The maximal temperature a node is allowed to have.
+	final double maxTemp = 256;
+
+	// The desired length of the edges.
+	final double desiredEdgeLength = 128;
+
+	// The gravitational constant.
+	private final double gravitationalConstant = (double) 1 / 32;
+
+	// The opening angles for oscillation- and rotation-detection.
+	private final double oscillationOpeningAngle = Math.PI / 2;
+	private final double rotationOpeningAngle = Math.PI;
+
+	// The sensitivity for correcting oscillations and rotations.
+	private final double oscillationSensitivity = 1.1;
+	private final double rotationSensitivity;
+
+	// The sine and cosine limits that the opening angles correspond to.
+	// Comparing against these avoids calculating the angle between impulses.
+	private final double rotationLimit = Math.sin((Math.PI / 2) + (rotationOpeningAngle / 2));
+	private final double oscillationLimit = Math.cos(oscillationOpeningAngle / 2);
+
+	/* ---------------- State of the nodes ---------------- */
+
+	// The number of nodes.
+	final int n;
+
+	// Where the buffers of the nodes and the neighbors live.
+	final GemMemory memory;
+
+	// The current coordinates.
+	final DoubleBuffer x;
+	final DoubleBuffer y;
+
+	// The temperatures.
+	final DoubleBuffer temp;
+
+	// The skews.
+	final DoubleBuffer skew;
+
+	// The last impulses.
+	final DoubleBuffer impX;
+	final DoubleBuffer impY;
+
+	// Fixed nodes push and pull the others, but are never moved.
+	final boolean[] fixed;
+
+	// The neighbors, in compressed sparse row form.
+	final IntBuffer offsets;
+	final IntBuffer targets;
+
+	// The index of every node in whatever this engine was created from:
+	// the visual items of a layout, or the nodes of a larger engine.
+	int[] ids;
+
+	/* ---------------- State of the rounds ---------------- */
+
+	// The coordinates the rounds read, see refreshScan(). Moving a node
+	// writes both the buffers and these.
+	private double[] scanX;
+	private double[] scanY;
+
+	// True if scanX and scanY are the arrays of the buffers.
+	private boolean scanShared;
+
+	// The sum of the coordinates for all the nodes. This is
+	// used to calculate the location of the barycenter.
+	private double sumX, sumY;
+
+	// The sum of the temperatures of the nodes moved in the current round.
+	private double roundTemp;
+
+	// The sum of the distances the nodes have moved in the current round.
+	private double roundDisplacement;
+
+	// The average distance the nodes have moved in the last round.
+	private double displacement;
+
+	// The highest temperature allowed in the current round, see coolingFactor.
+	private double tempLimit = maxTemp;
+
+	// The nodes that are not fixed.
+	private int[] order;
+
+	// The nodes that are moved, in the order of the current round: order
+	// itself, or the nodes picked from it by adaptive scheduling.
+	private int[] scheduled;
+	private int scheduledCount;
+
+	// The number of rounds run so far.
+	private int roundNumber = 0;
+
+	// The Morton code and index of every node, all the nodes sorted along
+	// the curve, the order in which the blocks are visited, and room for a
+	// copy of the scheduled nodes.
+	private long[] mortonKeys;
+	private int[] curve;
+	private int[] blockOrder;
+	private int[] blockCopy;
+
+	// The number of rounds in a row every node has been calm, and whether
+	// it is parked. Created by the first round with adaptive scheduling.
+	private int[] calmRounds;
+	private boolean[] parked;
+
+	// The random number generator of the calling thread.
+	private SplittableRandom random = new SplittableRandom();
+
+	// The state used to calculate impulses on the calling thread.
+	private Worker worker;
+
+	// The quadtree used by the Barnes-Hut approximation, rebuilt every round.
+	private final GemQuadTree quadTree = new GemQuadTree();
+
+	// The mesh used by the grid approximation, rebuilt every round.
+	private final GemGridRepulsion gridRepulsion = new GemGridRepulsion();
+
+	// True if the fixed nodes are kept in frozenTree, see frozenFarField.
+	private boolean splitFrozen = false;
+
+	// The quadtree of the fixed nodes, built in the first round.
+	private final GemQuadTree frozenTree = new GemQuadTree();
+
+	// The coordinates of the nodes that move, in the order of the current
+	// round, and the position of every node in them.
+	private double[] freeX, freeY;
+	private int[] freeIndex;
+
+	// The single precision copy of the coordinates scanned by the exact
+	// mode, see singlePrecision. Null if it is not used.
+	private float[] floatX, floatY;
+
+	// The number of nodes a single task calculates impulses for.
+	private static final int TASK_SIZE = 32;
+
+	// The number of times a node is moved right after it has been inserted.
+	private static final int INSERTION_ROUNDS = 3;
+
+	// See spatialOrder.
+	private static final int SORT_INTERVAL = 10;
+	private static final int BLOCK_SIZE = 64;
+
+	// See adaptiveScheduling. The wake distance is an eighth of the desired edge length.
+	private static final int PARK_ROUNDS = 5;
+	private static final int REVISIT_INTERVAL = 8;
+	private static final double WAKE_DISTANCE = 16;
+
+	// The impulses of the current batch in the parallel mode.
+	private double[] batchX = new double[0];
+	private double[] batchY = new double[0];
+
+	// The tasks of the parallel mode, one for every TASK_SIZE nodes of a
+	// batch, each with a worker of its own, and the task that runs a round.
+	// They are reused by every batch, so that a round allocates nothing.
+	private ImpulseTask[] tasks = new ImpulseTask[0];
+	private final RoundTask roundTask = new RoundTask();
+
+	// The state a thread needs to calculate impulses: its own random
+	// number generator, a stack for walking the quadtree and room for
+	// the impulse, so that calculating an impulse allocates nothing.
+	private static class Worker {
+
+		private final SplittableRandom random;
+
+		private final int[] stack = GemQuadTree.newStack();
+
+		private final double[] impulse = new double[2];
+
+		private Worker(SplittableRandom random) {
+			this.random = random;
+		}
+	}
+
+	/**
+	 * Creates an engine for a graph with its state on the heap. All the
+	 * nodes are placed at the origin, with the maximal temperature and no skew.
+	 * @param offsets the neighbor offsets, one more than the number of nodes
+	 * @param targets the neighbor targets
+	 */
+	GemEngine(int[] offsets, int[] targets) {
+		this(offsets, targets, GemMemory.HEAP);
+	}
+
+	/**
+	 * Creates an engine for a graph. All the nodes are placed at the origin,
+	 * with the maximal temperature and no skew.
+	 * @param offsets the neighbor offsets, one more than the number of nodes
+	 * @param targets the neighbor targets
+	 * @param memory where to keep the state of the nodes and the neighbors
+	 * @throws IllegalArgumentException if a buffer would be larger than 2 GB
+	 * @throws java.io.UncheckedIOException if a file cannot be mapped
+	 */
+	GemEngine(int[] offsets, int[] targets, GemMemory memory) {
+
+		this.memory = memory;
+		this.offsets = memory.ints(offsets);
+		this.targets = memory.ints(targets);
+
+		n = offsets.length - 1;
+		x = memory.doubles(n);
+		y = memory.doubles(n);
+		temp = memory.doubles(n);
+		skew = memory.doubles(n);
+		impX = memory.doubles(n);
+		impY = memory.doubles(n);
+		fixed = new boolean[n];
+
+		for(int i = 0; i < n; ++i) {
+			temp.put(i, maxTemp);
+		}
+
+		ids = new int[n];
+		for(int i = 0; i < n; ++i) {
+			ids[i] = i;
+		}
+
+		rotationSensitivity = (double) 1 / (2 * Math.max(n, 1));
+		worker = new Worker(random.split());
+	}
+
+	/**
+	 * Copies the settings of another engine.
+	 * @param other the engine to copy the settings from
+	 */
+	void copySettings(GemEngine other) {
+		repulsionMode = other.repulsionMode;
+		theta = other.theta;
+		gridSize = other.gridSize;
+		euclideanDistance = other.euclideanDistance;
+		parallel = other.parallel;
+		batchSize = other.batchSize;
+		pool = other.pool;
+		frozenFarField = other.frozenFarField;
+		coolingFactor = other.coolingFactor;
+		adaptiveScheduling = other.adaptiveScheduling;
+		parkTemperature = other.parkTemperature;
+		spatialOrder = other.spatialOrder;
+		singlePrecision = other.singlePrecision;
+	}
+
+	/**
+	 * Returns the number of neighbors of a node.
+	 * @param i the node
+	 * @return the degree of the node
+	 */
+	int degree(int i) {
+		return offsets.get(i + 1) - offsets.get(i);
+	}
+
+	/**
+	 * Creates an engine for the subgraph induced by some of the nodes.
+	 * The state and the settings of the nodes are copied, ids of the new
+	 * engine point at the nodes of this engine, and its random number
+	 * generator is seeded from the one of this engine.
+	 * @param vertices the nodes of the subgraph
+	 * @return the new engine
+	 */
+	GemEngine subgraph(int[] vertices) {
+
+		int[] map = new int[n];
+		Arrays.fill(map, -1);
+		for(int k = 0; k < vertices.length; ++k) {
+			map[vertices[k]] = k;
+		}
+
+		int[] subOffsets = new int[vertices.length + 1];
+		int count = 0;
+		for(int k = 0; k < vertices.length; ++k) {
+			int v = vertices[k];
+			for(int e = offsets.get(v); e < offsets.get(v + 1); ++e) {
+				if(map[targets.get(e)] != -1) {
+					++count;
+				}
+			}
+			subOffsets[k + 1] = count;
+		}
+
+		int[] subTargets = new int[count];
+		count = 0;
+		for(int v : vertices) {
+			for(int e = offsets.get(v); e < offsets.get(v + 1); ++e) {
+				int t = map[targets.get(e)];
+				if(t != -1) {
+					subTargets[count++] = t;
+				}
+			}
+		}
+
+		GemEngine sub = new GemEngine(subOffsets, subTargets, memory);
+		sub.copySettings(this);
+		sub.seed(random.nextLong());
+		sub.ids = vertices;
+		for(int k = 0; k < vertices.length; ++k) {
+			int v = vertices[k];
+			sub.x.put(k, x.get(v));
+			sub.y.put(k, y.get(v));
+			sub.temp.put(k, temp.get(v));
+			sub.skew.put(k, skew.get(v));
+			sub.impX.put(k, impX.get(v));
+			sub.impY.put(k, impY.get(v));
+			sub.fixed[k] = fixed[v];
+		}
+
+		return sub;
+	}
+
+	/**
+	 * Copies the state of the nodes of a subgraph back into this engine.
+	 * @param sub an engine created by {@link #subgraph(int[])}
+	 */
+	void copyFrom(GemEngine sub) {
+		for(int k = 0; k < sub.n; ++k) {
+			int v = sub.ids[k];
+			x.put(v, sub.x.get(k));
+			y.put(v, sub.y.get(k));
+			temp.put(v, sub.temp.get(k));
+			skew.put(v, sub.skew.get(k));
+			impX.put(v, sub.impX.get(k));
+			impY.put(v, sub.impY.get(k));
+		}
+	}
+
+	/**
+	 * Creates a copy of this engine that keeps its state somewhere else.
+	 * The copy has the same graph, state, ids and settings, and its random
+	 * number generator is seeded from the one of this engine.
+	 * @param target where the copy keeps its state
+	 * @return the copy
+	 * @throws IllegalArgumentException if a buffer would be larger than 2 GB
+	 * @throws java.io.UncheckedIOException if a file cannot be mapped
+	 */
+	GemEngine moveTo(GemMemory target) {
+
+		GemEngine copy = new GemEngine(GemMemory.toArray(offsets), GemMemory.toArray(targets), target);
+		copy.copySettings(this);
+		copy.seed(random.nextLong());
+		copy.ids = ids;
+		copy.tempLimit = tempLimit;
+		for(int i = 0; i < n; ++i) {
+			copy.x.put(i, x.get(i));
+			copy.y.put(i, y.get(i));
+			copy.temp.put(i, temp.get(i));
+			copy.skew.put(i, skew.get(i));
+			copy.impX.put(i, impX.get(i));
+			copy.impY.put(i, impY.get(i));
+			copy.fixed[i] = fixed[i];
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Restarts the random number generators from a seed. Two engines with
+	 * the same graph, positions, settings and seed run the same rounds.
+	 * @param seed the seed
+	 */
+	void seed(long seed) {
+		random = new SplittableRandom(seed);
+		worker = new Worker(random.split());
+		tasks = new ImpulseTask[0];
+	}
+
+	/**
+	 * Returns the random number generator of the calling thread. Everything
+	 * random about a layout, also the placement before the rounds and the
+	 * coarsening of the multilevel mode, uses this one, so that seed() makes
+	 * the whole layout repeatable.
+	 * @return the random number generator
+	 */
+	SplittableRandom random() {
+		return random;
+	}
+
+	/**
+	 * Starts the cooling of coolingFactor over, so that the next round
+	 * allows the maximal temperature again. Called whenever the nodes are
+	 * placed for a new run, so that an engine can be used for several runs.
+	 */
+	void restartCooling() {
+		tempLimit = maxTemp;
+	}
+
+	/**
+	 * Places every node that is not fixed at a random position in a
+	 * 2048 * 2048 square around the origin, with the maximal temperature,
+	 * no skew and no last impulse.
+	 */
+	void randomize() {
+		restartCooling();
+		for(int i = 0; i < n; ++i) {
+			if(fixed[i]) {
+				continue;
+			}
+			x.put(i, random.nextDouble() * 2048 - 1024);
+			y.put(i, random.nextDouble() * 2048 - 1024);
+			temp.put(i, maxTemp);
+			skew.put(i, 0);
+			impX.put(i, 0);
+			impY.put(i, 0);
+		}
+	}
+
+	/**
+	 * Places every node at the position of its parent on a coarser level,
+	 * plus a small random offset, and resets its temperature.
+	 * @param coarse the coarser level
+	 * @param parent the parent of every node of this level
+	 * @param spread the width of the square the offsets are picked from
+	 * @param startTemp the temperature the nodes start with
+	 */
+	void interpolate(GemEngine coarse, int[] parent, double spread, double startTemp) {
+		restartCooling();
+		for(int i = 0; i < n; ++i) {
+			x.put(i, coarse.x.get(parent[i]) + (random.nextDouble() - 0.5) * spread);
+			y.put(i, coarse.y.get(parent[i]) + (random.nextDouble() - 0.5) * spread);
+			temp.put(i, startTemp);
+			skew.put(i, 0);
+			impX.put(i, 0);
+			impY.put(i, 0);
+		}
+	}
+
+	/**
+	 * The insertion phase of GEM. The nodes that are not fixed are added one
+	 * by one, in breadth first order starting from the fixed nodes, or from
+	 * the node with the highest degree of every component that has no fixed
+	 * node. Every node starts at the barycenter of its neighbors that have
+	 * been added before it (or of all the added nodes if there are none),
+	 * plus a random offset, and is then moved a few times, only looking at
+	 * the nodes added before it. The repulsion is calculated exactly, so
+	 * this takes O(n^2) time.
+	 * @param startTemp the temperature the inserted nodes start with
+	 */
+	void insert(double startTemp) {
+
+		restartCooling();
+		refreshScan();
+
+		// queued: the node has been put in the breadth first order.
+		// inserted: the node has a position.
+		boolean[] queued = new boolean[n];
+		boolean[] inserted = new boolean[n];
+		int[] order = new int[n];
+		int head = 0;
+		int tail = 0;
+
+		// The coordinates of the inserted nodes, and where every node is in them.
+		double[] insertedX = new double[n];
+		double[] insertedY = new double[n];
+		int[] insertedIndex = new int[n];
+		int count = 0;
+
+		sumX = 0;
+		sumY = 0;
+		for(int i = 0; i < n; ++i) {
+			if(fixed[i]) {
+				queued[i] = true;
+				inserted[i] = true;
+				order[tail++] = i;
+				insertedX[count] = x.get(i);
+				insertedY[count] = y.get(i);
+				insertedIndex[i] = count++;
+				sumX += x.get(i);
+				sumY += y.get(i);
+			}
+		}
+
+		double desSquared = desiredEdgeLength * desiredEdgeLength;
+
+		while(head < n) {
+
+			// Start a new component at the node with the highest degree.
+			if(head == tail) {
+				int best = -1;
+				for(int i = 0; i < n; ++i) {
+					if(!queued[i] && (best == -1 || degree(i) > degree(best))) {
+						best = i;
+					}
+				}
+				queued[best] = true;
+				order[tail++] = best;
+			}
+
+			int v = order[head++];
+
+			for(int e = offsets.get(v); e < offsets.get(v + 1); ++e) {
+				int u = targets.get(e);
+				if(!queued[u]) {
+					queued[u] = true;
+					order[tail++] = u;
+				}
+			}
+
+			if(inserted[v]) {
+				continue;
+			}
+
+			// Start at the barycenter of the inserted neighbors, or of all the inserted nodes.
+			double centerX = 0;
+			double centerY = 0;
+			int neighbors = 0;
+			for(int e = offsets.get(v); e < offsets.get(v + 1); ++e) {
+				int u = targets.get(e);
+				if(inserted[u]) {
+					centerX += x.get(u);
+					centerY += y.get(u);
+					++neighbors;
+				}
+			}
+			if(neighbors > 0) {
+				centerX /= neighbors;
+				centerY /= neighbors;
+			} else if(count > 0) {
+				centerX = sumX / count;
+				centerY = sumY / count;
+			}
+
+			x.put(v, centerX + (random.nextDouble() - 0.5) * desiredEdgeLength);
+			y.put(v, centerY + (random.nextDouble() - 0.5) * desiredEdgeLength);
+			temp.put(v, startTemp);
+			skew.put(v, 0);
+			impX.put(v, 0);
+			impY.put(v, 0);
+
+			inserted[v] = true;
+			insertedX[count] = x.get(v);
+			insertedY[count] = y.get(v);
+			insertedIndex[v] = count++;
+			sumX += x.get(v);
+			sumY += y.get(v);
+
+			double scalingFactor = calculateScalingFactor(v);
+			double desSquaredScaled = desSquared * scalingFactor;
+
+			// Move the node a few times, only looking at the inserted nodes.
+			for(int r = 0; r < INSERTION_ROUNDS; ++r) {
+
+				double xv = x.get(v);
+				double yv = y.get(v);
+
+				// Attraction to the barycenter and random disturbance.
+				double impulseX = (sumX / count - xv) * gravitationalConstant * scalingFactor
+						+ random.nextDouble() * 40 - 20;
+				double impulseY = (sumY / count - yv) * gravitationalConstant * scalingFactor
+						+ random.nextDouble() * 40 - 20;
+
+				// Repulsion from the inserted nodes, the node itself is skipped.
+				for(int j = 0; j < count; ++j) {
+					double dx = xv - insertedX[j];
+					double dy = yv - insertedY[j];
+					double distance = euclideanDistance ? Math.sqrt(dx * dx + dy * dy) : Math.abs(dx) + Math.abs(dy);
+					double scale = distance != 0 ? desSquared / (distance * distance) : 0;
+					impulseX += dx * scale;
+					impulseY += dy * scale;
+				}
+
+				// Attraction to the inserted neighbors.
+				for(int e = offsets.get(v); e < offsets.get(v + 1); ++e) {
+					int u = targets.get(e);
+					if(inserted[u]) {
+						double dx = xv - x.get(u);
+						double dy = yv - y.get(u);
+						double distance = euclideanDistance ? Math.sqrt(dx * dx + dy * dy) : Math.abs(dx) + Math.abs(dy);
+						double scale = (distance * distance) / desSquaredScaled;
+						impulseX -= dx * scale;
+						impulseY -= dy * scale;
+					}
+				}
+
+				// Move the node, this also keeps sumX and sumY up to date.
+				calculateTemperature(v, impulseX, impulseY);
+				insertedX[insertedIndex[v]] = x.get(v);
+				insertedY[insertedIndex[v]] = y.get(v);
+			}
+		}
+	}
+
+	/**
+	 * Moves every node that is not fixed once, in random order. With
+	 * adaptive scheduling, parked nodes are skipped in most rounds.
+	 * @return the average temperature of the nodes that are not fixed
+	 */
+	double round() {
+
+		refreshScan();
+
+		if(order == null) {
+			int movable = 0;
+			for(int i = 0; i < n; ++i) {
+				if(!fixed[i]) {
+					++movable;
+				}
+			}
+			order = new int[movable];
+			movable = 0;
+			for(int i = 0; i < n; ++i) {
+				if(!fixed[i]) {
+					order[movable++] = i;
+				}
+			}
+			prepareFrozen();
+		}
+
+		if(order.length == 0) {
+			displacement = 0;
+			return 0;
+		}
+
+		++roundNumber;
+		roundTemp = 0;
+		roundDisplacement = 0;
+
+		if(spatialOrder && (mortonKeys == null || roundNumber % SORT_INTERVAL == 0)) {
+			sortAlongCurve();
+		}
+
+		// Pick the nodes to move. A skipped node keeps its temperature,
+		// which still counts towards the average.
+		if(adaptiveScheduling) {
+			if(parked == null) {
+				calmRounds = new int[n];
+				parked = new boolean[n];
+				scheduled = new int[order.length];
+			}
+			scheduledCount = 0;
+			for(int i : order) {
+				if(!parked[i] || (roundNumber + i) % REVISIT_INTERVAL == 0) {
+					scheduled[scheduledCount++] = i;
+				} else {
+					roundTemp += temp.get(i);
+				}
+			}
+		} else if(spatialOrder) {
+			if(scheduled == order || scheduled == null) {
+				scheduled = new int[order.length];
+			}
+			System.arraycopy(order, 0, scheduled, 0, order.length);
+			scheduledCount = order.length;
+		} else {
+			scheduled = order;
+			scheduledCount = order.length;
+		}
+
+		// Shuffle the order before every round.
+		if(spatialOrder) {
+			shuffleBlocks();
+		} else {
+			shuffle(scheduled, 0, scheduledCount);
+		}
+
+		// Sum up the coordinates from scratch, the moves keep the sum up to date.
+		sumX = 0;
+		sumY = 0;
+		for(int i = 0; i < n; ++i) {
+			sumX += scanX[i];
+			sumY += scanY[i];
+		}
+
+		// Gather the coordinates of the nodes that move.
+		if(splitFrozen) {
+			for(int k = 0; k < order.length; ++k) {
+				int i = order[k];
+				freeX[k] = scanX[i];
+				freeY[k] = scanY[i];
+				freeIndex[i] = k;
+			}
+		}
+
+		// Rebuild the quadtree or the mesh from the current coordinates.
+		double[] xs = splitFrozen ? freeX : scanX;
+		double[] ys = splitFrozen ? freeY : scanY;
+		if(repulsionMode == RepulsionMode.BARNES_HUT) {
+			// The moving nodes are gathered in order, which follows the curve.
+			quadTree.build(xs, ys, xs.length, spatialOrder && !splitFrozen ? curve : null);
+		} else if(repulsionMode == RepulsionMode.GRID) {
+			if(!euclideanDistance) {
+				throw new IllegalStateException("The grid approximation only supports the Euclidean distance.");
+			}
+			gridRepulsion.build(xs, ys, xs.length, gridSize);
+		} else if(singlePrecision) {
+			if(floatX == null) {
+				floatX = new float[xs.length];
+				floatY = new float[xs.length];
+			}
+			for(int k = 0; k < xs.length; ++k) {
+				floatX[k] = (float) xs[k];
+				floatY[k] = (float) ys[k];
+			}
+		}
+
+		if(parallel) {
+			runRoundParallel();
+		} else {
+			double[] imp = worker.impulse;
+			for(int k = 0; k < scheduledCount; ++k) {
+
+				int i = scheduled[k];
+
+				// Calculate the impulse.
+				calculateImpulse(i, worker);
+
+				// Use the impulse to calculate the temperature and move the node.
+				moveNode(i, imp[0], imp[1]);
+			}
+		}
+
+		tempLimit = tempLimit * coolingFactor;
+		displacement = roundDisplacement / order.length;
+
+		return roundTemp / order.length;
+	}
+
+	/**
+	 * Makes scanX and scanY hold the current coordinates. On the heap they
+	 * are the arrays of the buffers, so they only have to be found once.
+	 * Otherwise the buffers are copied into them in bulk.
+	 */
+	private void refreshScan() {
+
+		if(scanX == null) {
+			scanShared = x.hasArray() && x.arrayOffset() == 0 && y.hasArray() && y.arrayOffset() == 0;
+			scanX = scanShared ? x.array() : new double[n];
+			scanY = scanShared ? y.array() : new double[n];
+		}
+
+		if(!scanShared) {
+			x.clear();
+			x.get(scanX);
+			x.clear();
+			y.clear();
+			y.get(scanY);
+			y.clear();
+		}
+	}
+
+	/**
+	 * Shuffles a part of an array.
+	 */
+	private void shuffle(int[] a, int from, int to) {
+		for(int k = to - 1; k > from; --k) {
+			int j = from + random.nextInt(k - from + 1);
+			int tmp = a[k];
+			a[k] = a[j];
+			a[j] = tmp;
+		}
+	}
+
+	/**
+	 * Sorts all the nodes along a Z-order curve through their bounding box,
+	 * and the nodes in order in the same way.
+	 */
+	private void sortAlongCurve() {
+
+		if(mortonKeys == null) {
+			mortonKeys = new long[n];
+			curve = new int[n];
+			blockOrder = new int[(order.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+			blockCopy = new int[order.length];
+		}
+
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for(int i = 0; i < n; ++i) {
+			minX = Math.min(minX, scanX[i]);
+			maxX = Math.max(maxX, scanX[i]);
+			minY = Math.min(minY, scanY[i]);
+			maxY = Math.max(maxY, scanY[i]);
+		}
+
+		// 15 bits per axis, so the keys stay positive.
+		double scale = 32767 / Math.max(Math.max(maxX - minX, maxY - minY), 1);
+		for(int i = 0; i < n; ++i) {
+			long code = interleave((int) ((scanX[i] - minX) * scale))
+					| (interleave((int) ((scanY[i] - minY) * scale)) << 1);
+			mortonKeys[i] = (code << 32) | i;
+		}
+
+		Arrays.sort(mortonKeys);
+		int count = 0;
+		for(int k = 0; k < n; ++k) {
+			int i = (int) mortonKeys[k];
+			curve[k] = i;
+			if(!fixed[i]) {
+				order[count++] = i;
+			}
+		}
+	}
+
+	/**
+	 * Spreads the lowest 15 bits of a value to the even bits of the result.
+	 */
+	private static long interleave(int v) {
+		long b = v & 0x7FFF;
+		b = (b | (b << 8)) & 0x00FF00FFL;
+		b = (b | (b << 4)) & 0x0F0F0F0FL;
+		b = (b | (b << 2)) & 0x33333333L;
+		b = (b | (b << 1)) & 0x55555555L;
+		return b;
+	}
+
+	/**
+	 * Puts the blocks of scheduled in random order, and shuffles the nodes
+	 * inside every block. The blocks are taken from a copy, so that they
+	 * stay together from one round to the next.
+	 */
+	private void shuffleBlocks() {
+
+		int blocks = (scheduledCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		for(int b = 0; b < blocks; ++b) {
+			blockOrder[b] = b;
+		}
+		shuffle(blockOrder, 0, blocks);
+
+		int[] copy = blockCopy;
+		System.arraycopy(scheduled, 0, copy, 0, scheduledCount);
+
+		int k = 0;
+		for(int b = 0; b < blocks; ++b) {
+			int from = blockOrder[b] * BLOCK_SIZE;
+			int to = Math.min(from + BLOCK_SIZE, scheduledCount);
+			int start = k;
+			for(int j = from; j < to; ++j) {
+				scheduled[k++] = copy[j];
+			}
+			shuffle(scheduled, start, k);
+		}
+	}
+
+	/**
+	 * Moves a node, and parks or wakes nodes if adaptive scheduling is on.
+	 * @param i the node that is going to be moved
+	 * @param impulseX the x-component of its impulse
+	 * @param impulseY the y-component of its impulse
+	 */
+	private void moveNode(int i, double impulseX, double impulseY) {
+
+		// A node moves by its temperature, unless the impulse is 0.
+		double moved = impulseX != 0 || impulseY != 0 ? temp.get(i) : 0;
+		calculateTemperature(i, impulseX, impulseY);
+
+		if(!adaptiveScheduling) {
+			return;
+		}
+
+		// A big move wakes up the neighbors.
+		if(moved >= WAKE_DISTANCE) {
+			for(int e = offsets.get(i); e < offsets.get(i + 1); ++e) {
+				int u = targets.get(e);
+				parked[u] = false;
+				calmRounds[u] = 0;
+			}
+		}
+
+		if(moved < parkTemperature && temp.get(i) < parkTemperature) {
+			if(++calmRounds[i] >= PARK_ROUNDS) {
+				parked[i] = true;
+			}
+		} else {
+			calmRounds[i] = 0;
+			parked[i] = false;
+		}
+	}
+
+	/**
+	 * Returns the number of nodes that are parked by adaptive scheduling.
+	 * @return the number of parked nodes
+	 */
+	int getParkedCount() {
+		int count = 0;
+		if(parked != null) {
+			for(boolean p : parked) {
+				if(p) {
+					++count;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the average distance the nodes have moved in the last round.
+	 * @return the average distance, 0 before the first round
+	 */
+	double getDisplacement() {
+		return displacement;
+	}
+
+	/**
+	 * Builds the quadtree of the fixed nodes if frozenFarField is set and
+	 * there are any. Fixed nodes never move, so the tree stays valid for
+	 * all the rounds of this engine.
+	 */
+	private void prepareFrozen() {
+
+		splitFrozen = frozenFarField && order.length < n;
+		if(!splitFrozen) {
+			return;
+		}
+
+		double[] fixedX = new double[n - order.length];
+		double[] fixedY = new double[n - order.length];
+		int count = 0;
+		for(int i = 0; i < n; ++i) {
+			if(fixed[i]) {
+				fixedX[count] = scanX[i];
+				fixedY[count] = scanY[i];
+				++count;
+			}
+		}
+		frozenTree.build(fixedX, fixedY, count);
+
+		freeX = new double[order.length];
+		freeY = new double[order.length];
+		freeIndex = new int[n];
+	}
+
+	/**
+	 * Moves all the nodes once, calculating the impulses of every batch in
+	 * parallel and then moving the nodes of the batch in order. The
+	 * barycenter and the temperature sum are only updated while moving,
+	 * so they are never shared between threads.
+	 */
+	private void runRoundParallel() {
+
+		int count = scheduledCount;
+		if(batchX.length < count) {
+			batchX = new double[count];
+			batchY = new double[count];
+		}
+
+		int taskCount = (Math.min(batchSize, count) + TASK_SIZE - 1) / TASK_SIZE;
+		if(tasks.length < taskCount) {
+			ImpulseTask[] grown = Arrays.copyOf(tasks, taskCount);
+			for(int t = tasks.length; t < taskCount; ++t) {
+				grown[t] = new ImpulseTask(new Worker(worker.random.split()));
+			}
+			tasks = grown;
+		}
+
+		// The whole round runs in the pool, so that it is submitted once.
+		roundTask.reinitialize();
+		pool.invoke(roundTask);
+	}
+
+	// Runs the batches of a round one after the other. The impulses of the nodes
+	// of a batch are calculated by its tasks, TASK_SIZE nodes each, and stored
+	// in batchX and batchY, then the nodes are moved in order.
+	private class RoundTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+
+			int count = scheduledCount;
+			for(int from = 0; from < count; from += batchSize) {
+
+				int to = Math.min(from + batchSize, count);
+				int taskCount = (to - from + TASK_SIZE - 1) / TASK_SIZE;
+				for(int t = taskCount - 1; t >= 0; --t) {
+					ImpulseTask task = tasks[t];
+					task.reinitialize();
+					task.from = from + t * TASK_SIZE;
+					task.to = Math.min(task.from + TASK_SIZE, to);
+					if(t > 0) {
+						task.fork();
+					}
+				}
+				tasks[0].compute();
+				for(int t = 1; t < taskCount; ++t) {
+					tasks[t].join();
+				}
+
+				for(int k = from; k < to; ++k) {
+					moveNode(scheduled[k], batchX[k], batchY[k]);
+				}
+			}
+		}
+	}
+
+	// Calculates the impulses of TASK_SIZE nodes of a batch. Every task keeps its
+	// worker, and so its random number generator, for all the batches.
+	private class ImpulseTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Worker worker;
+
+		private int from;
+		private int to;
+
+		private ImpulseTask(Worker worker) {
+			this.worker = worker;
+		}
+
+		@Override
+		protected void compute() {
+			for(int k = from; k < to; ++k) {
+				calculateImpulse(scheduled[k], worker);
+				batchX[k] = worker.impulse[0];
+				batchY[k] = worker.impulse[1];
+			}
+		}
+	}
+
+	/**
+	 * Calculates the scaling factor.
+	 * @param i the node for which we want the scaling factor
+	 * @return the scaling factor
+	 */
+	private double calculateScalingFactor(int i) {
+		return 1 + degree(i) / 2;
+	}
+
+	/**
+	 * Calculates the impulse, which is the direction the
+	 * node wants to move towards.
+	 * @param i the node for which we want the impulse
+	 * @param worker the state of the calling thread, the impulse is stored in worker.impulse
+	 */
+	private void calculateImpulse(int i, Worker worker) {
+
+		double[] xs = scanX;
+		double[] ys = scanY;
+		double xi = xs[i];
+		double yi = ys[i];
+
+		// Attraction to the barycenter, or the center of mass.
+		double[] impulse = worker.impulse;
+		impulse[0] = sumX / n - xi;
+		impulse[1] = sumY / n - yi;
+
+		// Apply scaling factor.
+		double scalingFactor = calculateScalingFactor(i);
+		impulse[0] = impulse[0] * gravitationalConstant * scalingFactor;
+		impulse[1] = impulse[1] * gravitationalConstant * scalingFactor;
+
+		// Random disturbance vector; default range: [-32,32] * [-32,32].
+		impulse[0] = impulse[0] + worker.random.nextDouble() * 40 - 20;
+		impulse[1] = impulse[1] + worker.random.nextDouble() * 40 - 20;
+
+		double desSquared = desiredEdgeLength * desiredEdgeLength;
+
+		// The fixed nodes are taken from their own tree, all the
+		// rest only looks at the nodes that move.
+		int count = n;
+		int self = i;
+		if(splitFrozen) {
+			frozenTree.accumulateRepulsion(xi, yi, -1, theta, desSquared,
+					euclideanDistance, impulse, worker.stack);
+			xs = freeX;
+			ys = freeY;
+			count = freeX.length;
+			self = freeIndex[i];
+		}
+
+		// Approximate the repulsive forces with the quadtree.
+		if(repulsionMode == RepulsionMode.BARNES_HUT) {
+			quadTree.accumulateRepulsion(xi, yi, self, theta, desSquared,
+					euclideanDistance, impulse, worker.stack);
+		}
+
+		// Interpolate the repulsive forces from the mesh.
+		else if(repulsionMode == RepulsionMode.GRID) {
+			gridRepulsion.accumulateRepulsion(xi, yi, desSquared, impulse);
+		}
+
+		// For every node in the graph: calculate the repulsive forces.
+		// NOTE: this is the most time-critical part of the algorithm.
+		// The node itself has a distance of 0 and is skipped like every
+		// other node in the same position.
+		else if(floatX != null) {
+			GemRepulsionKernel.INSTANCE.accumulate((float) xi, (float) yi, floatX, floatY, count,
+					(float) desSquared, euclideanDistance, impulse);
+		} else if(euclideanDistance) {
+			double forceX = 0;
+			double forceY = 0;
+			for(int j = 0; j < count; ++j) {
+				double dx = xi - xs[j];
+				double dy = yi - ys[j];
+				double d2 = dx * dx + dy * dy;
+				double scale = d2 != 0 ? desSquared / d2 : 0;
+				forceX += dx * scale;
+				forceY += dy * scale;
+			}
+			impulse[0] += forceX;
+			impulse[1] += forceY;
+		} else {
+			double forceX = 0;
+			double forceY = 0;
+			for(int j = 0; j < count; ++j) {
+				double dx = xi - xs[j];
+				double dy = yi - ys[j];
+				double distance = Math.abs(dx) + Math.abs(dy);
+				double scale = distance != 0 ? desSquared / (distance * distance) : 0;
+				forceX += dx * scale;
+				forceY += dy * scale;
+			}
+			impulse[0] += forceX;
+			impulse[1] += forceY;
+		}
+
+		double desSquaredScaled = desSquared * scalingFactor;
+
+		// For every node connected to i: calculate the attractive forces.
+		for(int e = offsets.get(i), end = offsets.get(i + 1); e < end; ++e) {
+
+			int u = targets.get(e);
+			double dx = xi - scanX[u];
+			double dy = yi - scanY[u];
+
+			double distanceSquared;
+
+			if(euclideanDistance) {
+				distanceSquared = dx * dx + dy * dy;
+			} else {
+				double distance = Math.abs(dx) + Math.abs(dy);
+				distanceSquared = distance * distance;
+			}
+
+			double scale = distanceSquared / desSquaredScaled;
+
+			impulse[0] = impulse[0] - dx * scale;
+			impulse[1] = impulse[1] - dy * scale;
+		}
+	}
+
+	/**
+	 * Calculates the temperature, which is the distance the
+	 * node is going to move. The node is then moved in the
+	 * direction of the impulse.
+	 * @param i the node that is going to be moved
+	 * @param impulseX the x-component of the impulse from {@link #calculateImpulse(int, Worker)}
+	 * @param impulseY the y-component of the impulse
+	 */
+	private void calculateTemperature(int i, double impulseX, double impulseY) {
+
+		double t = temp.get(i);
+
+		// If the current impulse is not 0.
+		if(impulseX != 0 || impulseY != 0) {
+
+			// Scale the impulse with the current temperature.
+			double scale = t / Math.sqrt(impulseX * impulseX + impulseY * impulseY);
+			impulseX = impulseX * scale;
+			impulseY = impulseY * scale;
+
+			// Update the node's coordinates. The node moves by its temperature.
+			double xi = x.get(i) + impulseX;
+			double yi = y.get(i) + impulseY;
+			x.put(i, xi);
+			y.put(i, yi);
+			scanX[i] = xi;
+			scanY[i] = yi;
+			roundDisplacement += t;
+
+			if(splitFrozen) {
+				freeX[freeIndex[i]] = xi;
+				freeY[freeIndex[i]] = yi;
+			}
+			if(floatX != null) {
+				int k = splitFrozen ? freeIndex[i] : i;
+				floatX[k] = (float) xi;
+				floatY[k] = (float) yi;
+			}
+
+			// Update the sum of all node-coordinates (used for calculating the barycenter).
+			sumX += impulseX;
+			sumY += impulseY;
+		}
+
+		double oldX = impX.get(i);
+		double oldY = impY.get(i);
+
+		// If the last impulse was not 0.
+		if(oldX != 0 || oldY != 0) {
+
+			// The dot product is |u||v| times the cosine of the angle between
+			// the last and the current impulse, the absolute value of the
+			// cross product is |u||v| times its sine.
+			double lengths = Math.sqrt((impulseX * impulseX + impulseY * impulseY) * (oldX * oldX + oldY * oldY));
+			double dot = impulseX * oldX + impulseY * oldY;
+			double cross = Math.abs(impulseX * oldY - impulseY * oldX);
+
+			// No angle without a current impulse.
+			if(lengths != 0) {
+
+				// Check for rotation.
+				if(cross >= rotationLimit * lengths) {
+					skew.put(i, skew.get(i) + rotationSensitivity * Math.signum(cross));
+				}
+
+				// Check for oscillation or move in the right direction.
+				if(Math.abs(dot) >= oscillationLimit * lengths) {
+					if(dot > 0) { // Move in the right direction detected: increase temperature.
+						t = t * oscillationSensitivity;
+					} else { // Oscillation detected: decrease temperature.
+						t = t / oscillationSensitivity;
+					}
+				}
+			}
+
+			t = t * (1 - Math.abs(skew.get(i)));
+			t = Math.min(t, tempLimit);
+			temp.put(i, t);
+		}
+
+		impX.put(i, impulseX);
+		impY.put(i, impulseY);
+
+		// Add the node's temperature to the global temperature.
+		roundTemp += t;
+	}
+}
@@ -0,0 +1,402 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+
+/*
+ * Grid based approximation of the repulsive forces in GEM, in the style of
+ * FIt-SNE. Every node spreads a unit "charge" onto the four closest points
+ * of a regular mesh, the charges are convolved with the repulsion kernel
+ * desiredEdgeLength^2 * d / |d|^2 using FFTs, and the force acting on every
+ * node is interpolated back from the mesh with the same weights.
+ *
+ * One round costs O(n + G^2 log G) for a mesh of G * G points, independent
+ * of how the nodes are distributed. The kernel always uses the Euclidean
+ * distance.
+ *
+ * The mesh smooths out the forces between nodes that are closer than about
+ * one mesh cell. These are corrected like in P3M: for the nodes in the same
+ * and the adjacent cells, the force the mesh passed between the two nodes
+ * is replaced by the exact force. The mesh part of a pair only depends on
+ * the weights of both nodes and the kernel between their mesh points, so
+ * it can be subtracted exactly. The correction costs O(n * k) for k nodes
+ * per cell, so the mesh should not be much coarser than the graph.
+ *
+ * Because the kernel is antisymmetric and the same weights are used for
+ * spreading and interpolating, a node never pushes itself.
+ */
+final class GemGridRepulsion {
+
+	// The kernel between mesh points that are up to NEAR_RANGE points apart
+	// along each axis, which covers the mesh points of two adjacent cells.
+	private static final int NEAR_RANGE = 2;
+	private static final int NEAR_WIDTH = 2 * NEAR_RANGE + 1;
+	private static final double[] NEAR_KERNEL_X = new double[NEAR_WIDTH * NEAR_WIDTH];
+	private static final double[] NEAR_KERNEL_Y = new double[NEAR_WIDTH * NEAR_WIDTH];
+
+	static {
+		for(int j = -NEAR_RANGE; j <= NEAR_RANGE; ++j) {
+			for(int i = -NEAR_RANGE; i <= NEAR_RANGE; ++i) {
+				double d2 = i * i + j * j;
+				if(d2 != 0) {
+					NEAR_KERNEL_X[(j + NEAR_RANGE) * NEAR_WIDTH + i + NEAR_RANGE] = i / d2;
+					NEAR_KERNEL_Y[(j + NEAR_RANGE) * NEAR_WIDTH + i + NEAR_RANGE] = j / d2;
+				}
+			}
+		}
+	}
+
+	// The number of mesh points along each axis.
+	private int gridSize = 0;
+
+	// The size of the zero-padded FFT along each axis (2 * gridSize).
+	private int paddedSize = 0;
+
+	// The padded mesh. Holds the charges before the convolution and
+	// the force field afterwards (x in re, y in im).
+	private double[] re = new double[0];
+	private double[] im = new double[0];
+
+	// The Fourier transforms of the x- and y-components of the kernel.
+	private double[] kernelXRe, kernelXIm, kernelYRe, kernelYIm;
+
+	// Twiddle factors and bit reversal permutation for one FFT of paddedSize.
+	private double[] cosTable, sinTable;
+	private int[] bitReverse;
+
+	// Scratch arrays for transforming one column.
+	private double[] columnRe, columnIm;
+
+	// Position and spacing of the mesh.
+	private double originX, originY, spacing;
+
+	// The nodes sorted by mesh cell, for the near-field correction: the
+	// nodes of cell (col, row) are at cellStart[row * gridSize + col] to
+	// cellStart[row * gridSize + col + 1] - 1 in nearX and nearY.
+	private int[] cellStart = new int[0];
+	private int[] cellFill = new int[0];
+	private int[] nodeCell = new int[0];
+	private double[] nearX = new double[0];
+	private double[] nearY = new double[0];
+
+	// True if build() has been called with at least one node.
+	private boolean ready = false;
+
+	/**
+	 * Spreads the nodes onto the mesh and calculates the force field.
+	 * @param xs the x-coordinates of the nodes
+	 * @param ys the y-coordinates of the nodes
+	 * @param n the number of nodes, starting at index 0
+	 * @param size the number of mesh points along each axis, a power of two
+	 */
+	void build(double[] xs, double[] ys, int n, int size) {
+
+		ready = false;
+		if(n == 0) {
+			return;
+		}
+
+		if(size != gridSize) {
+			prepare(size);
+		}
+		if(nodeCell.length < n) {
+			nodeCell = new int[n];
+		}
+
+		// Find the bounding box of all the nodes and fit the mesh to it.
+		double minX = xs[0], maxX = xs[0];
+		double minY = ys[0], maxY = ys[0];
+		for(int i = 1; i < n; ++i) {
+			minX = Math.min(minX, xs[i]);
+			maxX = Math.max(maxX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+
+		spacing = Math.max(Math.max(maxX - minX, maxY - minY), 1) / (gridSize - 1);
+		originX = minX;
+		originY = minY;
+
+		// Spread the charges.
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+		for(int i = 0; i < n; ++i) {
+
+			double gx = clamp((xs[i] - originX) / spacing);
+			double gy = clamp((ys[i] - originY) / spacing);
+			int col = (int) gx;
+			int row = (int) gy;
+			double fx = gx - col;
+			double fy = gy - row;
+
+			int index = row * paddedSize + col;
+			re[index] += (1 - fx) * (1 - fy);
+			re[index + 1] += fx * (1 - fy);
+			re[index + paddedSize] += (1 - fx) * fy;
+			re[index + paddedSize + 1] += fx * fy;
+
+			nodeCell[i] = row * gridSize + col;
+		}
+
+		// Sort the nodes by cell for the near-field correction.
+		Arrays.fill(cellStart, 0);
+		for(int i = 0; i < n; ++i) {
+			++cellStart[nodeCell[i] + 1];
+		}
+		for(int c = 0; c < gridSize * gridSize; ++c) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		System.arraycopy(cellStart, 0, cellFill, 0, gridSize * gridSize);
+		if(nearX.length < n) {
+			nearX = new double[n];
+			nearY = new double[n];
+		}
+		for(int i = 0; i < n; ++i) {
+			int k = cellFill[nodeCell[i]]++;
+			nearX[k] = xs[i];
+			nearY[k] = ys[i];
+		}
+
+		fft2d(false);
+
+		// Multiply with both kernels at once: the x-field ends up in the real
+		// part and the y-field in the imaginary part of the inverse transform.
+		for(int k = 0; k < re.length; ++k) {
+			double qr = re[k];
+			double qi = im[k];
+			double ar = qr * kernelXRe[k] - qi * kernelXIm[k];
+			double ai = qr * kernelXIm[k] + qi * kernelXRe[k];
+			double br = qr * kernelYRe[k] - qi * kernelYIm[k];
+			double bi = qr * kernelYIm[k] + qi * kernelYRe[k];
+			re[k] = ar - bi;
+			im[k] = ai + br;
+		}
+
+		fft2d(true);
+
+		ready = true;
+	}
+
+	/**
+	 * Adds the approximated repulsive forces from all the nodes on the mesh
+	 * to the impulse of a node.
+	 * @param x the x-coordinate of the node
+	 * @param y the y-coordinate of the node
+	 * @param desSquared the desired edge length squared
+	 * @param impulse the impulse that the forces are added to
+	 */
+	void accumulateRepulsion(double x, double y, double desSquared, double[] impulse) {
+
+		if(!ready) {
+			return;
+		}
+
+		double gx = clamp((x - originX) / spacing);
+		double gy = clamp((y - originY) / spacing);
+		int col = (int) gx;
+		int row = (int) gy;
+		double fx = gx - col;
+		double fy = gy - row;
+
+		int index = row * paddedSize + col;
+		double w00 = (1 - fx) * (1 - fy);
+		double w01 = fx * (1 - fy);
+		double w10 = (1 - fx) * fy;
+		double w11 = fx * fy;
+
+		// The kernel was calculated in mesh units, scale it back.
+		double scale = desSquared / spacing;
+
+		impulse[0] += scale * (w00 * re[index] + w01 * re[index + 1]
+				+ w10 * re[index + paddedSize] + w11 * re[index + paddedSize + 1]);
+		impulse[1] += scale * (w00 * im[index] + w01 * im[index + 1]
+				+ w10 * im[index + paddedSize] + w11 * im[index + paddedSize + 1]);
+
+		// The near-field correction: for every node in this and the adjacent
+		// cells, the exact force minus the force the mesh passed between the
+		// two nodes, from the weights of both and the kernel between their
+		// mesh points.
+		double exactX = 0;
+		double exactY = 0;
+		double meshX = 0;
+		double meshY = 0;
+		for(int r = Math.max(row - 1, 0); r <= Math.min(row + 1, gridSize - 2); ++r) {
+			for(int c = Math.max(col - 1, 0); c <= Math.min(col + 1, gridSize - 2); ++c) {
+				int cell = r * gridSize + c;
+				for(int k = cellStart[cell]; k < cellStart[cell + 1]; ++k) {
+
+					double dx = x - nearX[k];
+					double dy = y - nearY[k];
+					double d2 = dx * dx + dy * dy;
+					if(d2 == 0) {
+						continue;
+					}
+					exactX += dx / d2;
+					exactY += dy / d2;
+
+					// Mesh point a of this node is (col + (a & 1), row + (a >> 1)),
+					// with the same weights as above, mesh point b of the other
+					// node is (c + (b & 1), r + (b >> 1)).
+					double hx = clamp((nearX[k] - originX) / spacing) - c;
+					double hy = clamp((nearY[k] - originY) / spacing) - r;
+					for(int b = 0; b < 4; ++b) {
+						double v = ((b & 1) != 0 ? hx : 1 - hx) * ((b & 2) != 0 ? hy : 1 - hy);
+						for(int a = 0; a < 4; ++a) {
+							double w = ((a & 1) != 0 ? fx : 1 - fx) * ((a & 2) != 0 ? fy : 1 - fy);
+							int i = col + (a & 1) - c - (b & 1) + NEAR_RANGE;
+							int j = row + (a >> 1) - r - (b >> 1) + NEAR_RANGE;
+							meshX += w * v * NEAR_KERNEL_X[j * NEAR_WIDTH + i];
+							meshY += w * v * NEAR_KERNEL_Y[j * NEAR_WIDTH + i];
+						}
+					}
+				}
+			}
+		}
+		impulse[0] += desSquared * exactX - scale * meshX;
+		impulse[1] += desSquared * exactY - scale * meshY;
+	}
+
+	/**
+	 * Clamps a mesh coordinate so that the four surrounding mesh points exist.
+	 */
+	private double clamp(double g) {
+		return Math.min(Math.max(g, 0), gridSize - 1.000001);
+	}
+
+	/**
+	 * Allocates the mesh for a new size and transforms the kernel.
+	 */
+	private void prepare(int size) {
+
+		if(size < 2 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Grid size must be a power of two: " + size);
+		}
+
+		gridSize = size;
+		paddedSize = 2 * size;
+		int p = paddedSize;
+
+		re = new double[p * p];
+		im = new double[p * p];
+		columnRe = new double[p];
+		columnIm = new double[p];
+		cellStart = new int[size * size + 1];
+		cellFill = new int[size * size];
+
+		cosTable = new double[p / 2];
+		sinTable = new double[p / 2];
+		for(int k = 0; k < p / 2; ++k) {
+			cosTable[k] = Math.cos(2 * Math.PI * k / p);
+			sinTable[k] = Math.sin(2 * Math.PI * k / p);
+		}
+
+		int bits = Integer.numberOfTrailingZeros(p);
+		bitReverse = new int[p];
+		for(int k = 0; k < p; ++k) {
+			bitReverse[k] = Integer.reverse(k) >>> (32 - bits);
+		}
+
+		// The kernel in mesh units, wrapped around for a linear convolution.
+		for(int j = -(size - 1); j < size; ++j) {
+			for(int i = -(size - 1); i < size; ++i) {
+				double d2 = i * i + j * j;
+				if(d2 != 0) {
+					int index = ((j + p) % p) * p + ((i + p) % p);
+					re[index] = i / d2;
+					im[index] = j / d2;
+				}
+			}
+		}
+
+		// Transform both components at once, then separate them using the
+		// symmetry of the transforms of real signals.
+		fft2d(false);
+
+		kernelXRe = new double[p * p];
+		kernelXIm = new double[p * p];
+		kernelYRe = new double[p * p];
+		kernelYIm = new double[p * p];
+		for(int row = 0; row < p; ++row) {
+			for(int col = 0; col < p; ++col) {
+				int k = row * p + col;
+				int m = ((p - row) % p) * p + ((p - col) % p);
+				kernelXRe[k] = (re[k] + re[m]) / 2;
+				kernelXIm[k] = (im[k] - im[m]) / 2;
+				kernelYRe[k] = (im[k] + im[m]) / 2;
+				kernelYIm[k] = (re[m] - re[k]) / 2;
+			}
+		}
+	}
+
+	/**
+	 * Transforms the padded mesh in place, row by row and then column by column.
+	 * The inverse transform is scaled so that it undoes the forward transform.
+	 */
+	private void fft2d(boolean inverse) {
+
+		int p = paddedSize;
+
+		for(int row = 0; row < p; ++row) {
+			fft(re, im, row * p, inverse);
+		}
+
+		for(int col = 0; col < p; ++col) {
+			for(int row = 0; row < p; ++row) {
+				columnRe[row] = re[row * p + col];
+				columnIm[row] = im[row * p + col];
+			}
+			fft(columnRe, columnIm, 0, inverse);
+			for(int row = 0; row < p; ++row) {
+				re[row * p + col] = columnRe[row];
+				im[row * p + col] = columnIm[row];
+			}
+		}
+
+		if(inverse) {
+			double scale = 1.0 / ((double) p * p);
+			for(int k = 0; k < re.length; ++k) {
+				re[k] *= scale;
+				im[k] *= scale;
+			}
+		}
+	}
+
+	/**
+	 * Iterative radix-2 FFT of paddedSize complex values starting at offset.
+	 */
+	private void fft(double[] xr, double[] xi, int offset, boolean inverse) {
+
+		int p = paddedSize;
+
+		for(int k = 0; k < p; ++k) {
+			int r = bitReverse[k];
+			if(r > k) {
+				double t = xr[offset + k];
+				xr[offset + k] = xr[offset + r];
+				xr[offset + r] = t;
+				t = xi[offset + k];
+				xi[offset + k] = xi[offset + r];
+				xi[offset + r] = t;
+			}
+		}
+
+		double sign = inverse ? 1 : -1;
+		for(int len = 2; len <= p; len <<= 1) {
+			int halfLen = len >> 1;
+			int step = p / len;
+			for(int start = offset; start < offset + p; start += len) {
+				for(int k = 0; k < halfLen; ++k) {
+					double wr = cosTable[k * step];
+					double wi = sign * sinTable[k * step];
+					int a = start + k;
+					int b = a + halfLen;
+					double tr = xr[b] * wr - xi[b] * wi;
+					double ti = xr[b] * wi + xi[b] * wr;
+					xr[b] = xr[a] - tr;
+					xi[b] = xi[a] - ti;
+					xr[a] += tr;
+					xi[a] += ti;
+				}
+			}
+		}
+	}
+}
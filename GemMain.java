@@ -201,6 +201,9 @@ public class GemMain extends Application {
 			
 			// Add the algorithm.
 			GraphEmbedderLayout algo = new GraphEmbedderLayout("graph");
+			
+			// Run the rounds in the background to keep the touch table responsive.
+			algo.setAsynchronous(true);
 			layout.add(algo);
 			layout.add(new RepaintAction());
 			
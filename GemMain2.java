@@ -199,6 +199,12 @@ public class GemMain2 extends Application {
 			
 			// Add the algorithm.
 			GraphEmbedderLayout2 algo = new GraphEmbedderLayout2("graph");
+			
+			// Let GemControl2 tell the algorithm which nodes are shown and hidden.
+			algo.setVisibilityTracking(true);
+			
+			// Run the rounds in the background to keep the touch table responsive.
+			algo.setAsynchronous(true);
 			layout.add(algo);
 			layout.add(new RepaintAction());
 			
@@ -208,7 +214,7 @@ public class GemMain2 extends Application {
 			FxDisplay display = new FxDisplay(vis);
 			
 			// Add the touch-functionality from GemControl to the display.
-			display.addControlListener(new GemControl2());
+			display.addControlListener(new GemControl2(algo));
 			
 			// Initialize all the nodes to set their colors and visibilities.
 			initializeNodes(vis.getVisualGroup("graph"));
@@ -0,0 +1,183 @@
+package prefux.action.layout.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Where a GemEngine keeps the state of its nodes and its neighbors: on the
+ * heap, off the heap in direct memory, or in files that are mapped into
+ * memory. Off the heap, the buffers do not count against the heap and the
+ * garbage collector never copies them. Mapped files can even be larger than
+ * the memory of the machine: the operating system keeps the parts that are
+ * in use in memory and writes the rest back to the files. An engine keeps
+ * part of its state on the heap in any case, see GemEngine.
+ *
+ * Every buffer of a mapped engine gets a file of its own in the directory,
+ * which is deleted right away: the mapping stays valid, and the operating
+ * system frees the file once it is not mapped anymore. Where an open file
+ * cannot be deleted, it is deleted when the JVM exits.
+ *
+ * A buffer is indexed by int, so a single buffer holds at most 2 GB. The
+ * methods that would create a larger one throw instead.
+ */
+final class GemMemory {
+
+	// The state on the heap.
+	static final GemMemory HEAP = new GemMemory(false, null);
+
+	// The largest number of bytes a buffer can hold.
+	static final long MAX_BYTES = Integer.MAX_VALUE;
+
+	// True if the buffers are off the heap.
+	private final boolean offHeap;
+
+	// The directory of the mapped files, null for direct memory.
+	private final File directory;
+
+	/**
+	 * Creates a place for the state of engines.
+	 * @param offHeap true to keep the state off the heap
+	 * @param directory the directory to create the mapped files in, null for
+	 * direct memory. Ignored on the heap.
+	 */
+	GemMemory(boolean offHeap, File directory) {
+		this.offHeap = offHeap;
+		this.directory = offHeap ? directory : null;
+	}
+
+	/**
+	 * Returns whether the state is kept off the heap.
+	 * @return true if the state is off the heap
+	 */
+	boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Returns the directory of the mapped files.
+	 * @return the directory, null if the state is not mapped from files
+	 */
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Creates a buffer of doubles, all 0.
+	 * @param count the number of doubles
+	 * @return the buffer, backed by an array if it is on the heap
+	 * @throws IllegalArgumentException if the buffer would be larger than 2 GB
+	 * @throws UncheckedIOException if the file cannot be mapped
+	 */
+	DoubleBuffer doubles(int count) {
+		if(!offHeap) {
+			return DoubleBuffer.allocate(count);
+		}
+		return bytes((long) count * Double.BYTES).asDoubleBuffer();
+	}
+
+	/**
+	 * Creates a buffer that holds the values of an array. On the heap, the
+	 * buffer is backed by the array itself.
+	 * @param values the values
+	 * @return the buffer
+	 * @throws IllegalArgumentException if the buffer would be larger than 2 GB
+	 * @throws UncheckedIOException if the file cannot be mapped
+	 */
+	IntBuffer ints(int[] values) {
+		if(!offHeap) {
+			return IntBuffer.wrap(values);
+		}
+		IntBuffer buffer = bytes((long) values.length * Integer.BYTES).asIntBuffer();
+		buffer.put(values);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns the values of a buffer as an array: the array backing the
+	 * buffer if there is one, a copy otherwise.
+	 * @param buffer the buffer, from position 0 to its capacity
+	 * @return the array
+	 */
+	static int[] toArray(IntBuffer buffer) {
+		if(buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.capacity()) {
+			return buffer.array();
+		}
+		int[] values = new int[buffer.capacity()];
+		for(int i = 0; i < values.length; ++i) {
+			values[i] = buffer.get(i);
+		}
+		return values;
+	}
+
+	/**
+	 * Creates a buffer of bytes off the heap, in direct memory or mapped from a new file.
+	 */
+	private ByteBuffer bytes(long bytes) {
+
+		if(directory == null) {
+			return allocateDirect(bytes);
+		}
+
+		// No file for a buffer that cannot be mapped.
+		checkSize(bytes);
+		try {
+			File file = File.createTempFile("gem", ".state", directory);
+			ByteBuffer buffer;
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				buffer = map(raf.getChannel(), bytes);
+			}
+			if(!file.delete()) {
+				file.deleteOnExit();
+			}
+			return buffer;
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Allocates a buffer in direct memory, in the native byte order.
+	 * @param bytes the size of the buffer
+	 * @return the buffer
+	 * @throws IllegalArgumentException if the size is larger than 2 GB
+	 */
+	static ByteBuffer allocateDirect(long bytes) {
+		return ByteBuffer.allocateDirect(checkSize(bytes)).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Maps the start of a file into memory for reading and writing, in the
+	 * native byte order. The file grows if it is smaller, and the mapping
+	 * stays valid after the file has been closed.
+	 * @param channel the channel of the file
+	 * @param bytes the size of the mapping
+	 * @return the buffer
+	 * @throws IllegalArgumentException if the size is larger than 2 GB
+	 * @throws IOException if the file cannot be mapped
+	 */
+	static ByteBuffer map(FileChannel channel, long bytes) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_WRITE, 0, checkSize(bytes)).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Checks that a buffer of a size can be created.
+	 * @param bytes the size
+	 * @return the size
+	 * @throws IllegalArgumentException if the size is larger than 2 GB
+	 */
+	private static int checkSize(long bytes) {
+		if(bytes > MAX_BYTES) {
+			throw new IllegalArgumentException("A buffer holds at most " + MAX_BYTES + " bytes, "
+					+ bytes + " bytes were requested.");
+		}
+		return (int) bytes;
+	}
+}
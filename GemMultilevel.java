@@ -0,0 +1,239 @@
+package prefux.action.layout.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/*
+ * Hierarchy of coarser and coarser versions of a graph, used by the
+ * multilevel mode of GEM. Level 0 is the original graph. Every coarser
+ * level is created by a maximal matching, after which the nodes that are
+ * still alone are merged into the lightest neighboring group. The second
+ * step lets stars and other hierarchy-like structures (which a matching
+ * alone barely shrinks) collapse quickly, similar to the solar systems
+ * used by FM3.
+ *
+ * The graphs are stored in compressed sparse row form: the neighbors of
+ * node i are targets[offsets[i]] to targets[offsets[i + 1] - 1]. parent[i]
+ * is the node on the next coarser level that node i has been merged into.
+ */
+final class GemMultilevel {
+
+	// Coarsening stops when a level has at most this many nodes.
+	private static final int COARSEST_SIZE = 50;
+
+	// Coarsening stops when a level does not shrink below this fraction
+	// of the level before it.
+	private static final double MIN_SHRINK = 0.95;
+
+	// The maximum number of levels.
+	private static final int MAX_LEVELS = 30;
+
+	// The neighbor offsets and targets of every level.
+	private final List<int[]> offsets = new ArrayList<>();
+	private final List<int[]> targets = new ArrayList<>();
+
+	// The parent of every node on every level except the coarsest one.
+	private final List<int[]> parents = new ArrayList<>();
+
+	/**
+	 * Coarsens a graph until it is small enough or stops shrinking.
+	 * @param graphOffsets the neighbor offsets of the original graph
+	 * @param graphTargets the neighbor targets of the original graph
+	 * @param random the random number generator used to order the nodes
+	 */
+	GemMultilevel(int[] graphOffsets, int[] graphTargets, SplittableRandom random) {
+
+		offsets.add(graphOffsets);
+		targets.add(graphTargets);
+
+		int n = graphOffsets.length - 1;
+		int[] weight = new int[n];
+		Arrays.fill(weight, 1);
+
+		while(n > COARSEST_SIZE && offsets.size() < MAX_LEVELS) {
+
+			int[] off = offsets.get(offsets.size() - 1);
+			int[] tgt = targets.get(targets.size() - 1);
+
+			int[] parent = new int[n];
+			int coarseSize = group(off, tgt, weight, parent, random);
+
+			// The level barely shrinks: no point in continuing.
+			if(coarseSize > n * MIN_SHRINK) {
+				break;
+			}
+
+			int[] coarseWeight = new int[coarseSize];
+			for(int i = 0; i < n; ++i) {
+				coarseWeight[parent[i]] += weight[i];
+			}
+
+			contract(off, tgt, parent, coarseSize);
+			parents.add(parent);
+			weight = coarseWeight;
+			n = coarseSize;
+		}
+	}
+
+	/**
+	 * Returns the number of levels, including the original graph.
+	 * @return the number of levels
+	 */
+	int getLevelCount() {
+		return offsets.size();
+	}
+
+	/**
+	 * Returns the neighbor offsets of a level.
+	 * @param level the level, 0 is the original graph
+	 * @return the neighbor offsets
+	 */
+	int[] getOffsets(int level) {
+		return offsets.get(level);
+	}
+
+	/**
+	 * Returns the neighbor targets of a level.
+	 * @param level the level, 0 is the original graph
+	 * @return the neighbor targets
+	 */
+	int[] getTargets(int level) {
+		return targets.get(level);
+	}
+
+	/**
+	 * Returns the nodes on the next coarser level that the nodes of a level
+	 * have been merged into.
+	 * @param level the level, must not be the coarsest one
+	 * @return the index of the parent of every node
+	 */
+	int[] getParent(int level) {
+		return parents.get(level);
+	}
+
+	/**
+	 * Divides the nodes into groups that will become the nodes of the next level.
+	 * @return the number of groups
+	 */
+	private static int group(int[] off, int[] tgt, int[] weight, int[] group, SplittableRandom random) {
+
+		int n = off.length - 1;
+		Arrays.fill(group, -1);
+
+		// Visit the nodes in random order.
+		int[] order = new int[n];
+		for(int i = 0; i < n; ++i) {
+			order[i] = i;
+		}
+		for(int i = n - 1; i > 0; --i) {
+			int j = random.nextInt(i + 1);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+
+		// Match every node with its lightest unmatched neighbor.
+		int groups = 0;
+		for(int v : order) {
+
+			if(group[v] != -1) {
+				continue;
+			}
+
+			int best = -1;
+			for(int e = off[v]; e < off[v + 1]; ++e) {
+				int u = tgt[e];
+				if(u != v && group[u] == -1 && (best == -1 || weight[u] < weight[best])) {
+					best = u;
+				}
+			}
+
+			if(best != -1) {
+				group[v] = groups;
+				group[best] = groups;
+				++groups;
+			}
+		}
+
+		int[] groupWeight = new int[n];
+		for(int v = 0; v < n; ++v) {
+			if(group[v] != -1) {
+				groupWeight[group[v]] += weight[v];
+			}
+		}
+
+		// All the neighbors of a node that is still alone are matched:
+		// merge it into the lightest neighboring group.
+		for(int v : order) {
+
+			if(group[v] != -1) {
+				continue;
+			}
+
+			int best = -1;
+			for(int e = off[v]; e < off[v + 1]; ++e) {
+				int g = group[tgt[e]];
+				if(g != -1 && (best == -1 || groupWeight[g] < groupWeight[best])) {
+					best = g;
+				}
+			}
+
+			// An isolated node stays alone.
+			if(best == -1) {
+				best = groups++;
+			}
+
+			group[v] = best;
+			groupWeight[best] += weight[v];
+		}
+
+		return groups;
+	}
+
+	/**
+	 * Creates the next level, without loops or duplicate edges.
+	 */
+	private void contract(int[] off, int[] tgt, int[] parent, int coarseSize) {
+
+		int n = off.length - 1;
+
+		// Collect the members of every group.
+		int[] start = new int[coarseSize + 1];
+		for(int p : parent) {
+			++start[p + 1];
+		}
+		for(int g = 0; g < coarseSize; ++g) {
+			start[g + 1] += start[g];
+		}
+		int[] members = new int[n];
+		int[] fill = Arrays.copyOf(start, coarseSize);
+		for(int v = 0; v < n; ++v) {
+			members[fill[parent[v]]++] = v;
+		}
+
+		int[] coarseOffsets = new int[coarseSize + 1];
+		int[] coarseTargets = new int[Math.max(tgt.length, 1)];
+		int[] mark = new int[coarseSize];
+		Arrays.fill(mark, -1);
+
+		int count = 0;
+		for(int g = 0; g < coarseSize; ++g) {
+			for(int k = start[g]; k < start[g + 1]; ++k) {
+				int v = members[k];
+				for(int e = off[v]; e < off[v + 1]; ++e) {
+					int h = parent[tgt[e]];
+					if(h != g && mark[h] != g) {
+						mark[h] = g;
+						coarseTargets[count++] = h;
+					}
+				}
+			}
+			coarseOffsets[g + 1] = count;
+		}
+
+		offsets.add(coarseOffsets);
+		targets.add(Arrays.copyOf(coarseTargets, count));
+	}
+}
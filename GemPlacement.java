@@ -0,0 +1,486 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/*
+ * Placement of the nodes of a GemEngine without running GEM: the initial
+ * placements (see InitialPlacement), and the folding of leaves.
+ */
+final class GemPlacement {
+
+	// The number of nodes a single task projects in Pivot MDS.
+	private static final int PROJECTION_GRAIN = 1024;
+
+	// The number of pivots Pivot MDS picks by max-min selection, the rest are random.
+	private static final int MAX_MIN_PIVOTS = 4;
+
+	private GemPlacement() {
+	}
+
+	/**
+	 * Places the nodes that have not been placed yet on fans around their
+	 * parents, in breadth first order starting from the placed nodes and
+	 * the nodes without a parent. A fan points away from the parent's own
+	 * parent, or is a full ring if the parent has none, and its radius grows
+	 * with the number of children so that siblings are about half a desired
+	 * edge length apart. Nodes that cannot be reached this way keep their
+	 * positions.
+	 * @param g the engine holding the nodes
+	 * @param parent the parent of every node, -1 if it has none
+	 * @param placed true for the nodes that keep their positions
+	 * @param startTemp the temperature of the nodes placed on a fan, NaN to keep it
+	 * @return true for every node that was placed on a fan
+	 */
+	static boolean[] aroundParents(GemEngine g, int[] parent, boolean[] placed, double startTemp) {
+		return placeFans(g, parent, placed, startTemp, false);
+	}
+
+	/**
+	 * Finds the nodes that do not have to take part in the rounds: nodes that
+	 * are not fixed and have a single neighbor, and if chains is set, nodes
+	 * with two neighbors that are left with a single one once the leaves
+	 * behind them are folded. Every component keeps at least one node.
+	 * @param g the engine holding the nodes
+	 * @param chains true to fold pendant chains as well
+	 * @return the node every folded node hangs from, -1 for the nodes that are not folded
+	 */
+	static int[] foldLeaves(GemEngine g, boolean chains) {
+
+		int n = g.n;
+		int[] anchor = new int[n];
+		Arrays.fill(anchor, -1);
+
+		int[] remaining = new int[n];
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		for(int v = 0; v < n; ++v) {
+			remaining[v] = g.degree(v);
+			if(remaining[v] == 1 && !g.fixed[v]) {
+				queue[tail++] = v;
+			}
+		}
+
+		while(head < tail) {
+
+			int v = queue[head++];
+
+			// The other end was folded into this node already.
+			if(remaining[v] != 1) {
+				continue;
+			}
+
+			// The neighbors folded into v hang from it, the other one is the anchor.
+			int u = -1;
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1) && u == -1; ++e) {
+				if(anchor[g.targets.get(e)] != v) {
+					u = g.targets.get(e);
+				}
+			}
+
+			anchor[v] = u;
+			--remaining[u];
+
+			if(chains && remaining[u] == 1 && g.degree(u) == 2 && !g.fixed[u]) {
+				queue[tail++] = u;
+			}
+		}
+
+		return anchor;
+	}
+
+	/**
+	 * Places the folded nodes around the nodes they hang from. The nodes
+	 * that hang from a node that was not folded are put in a half circle
+	 * facing away from the barycenter of the nodes that were not folded,
+	 * the rest on fans pointing away from the node above.
+	 * @param g the engine holding the nodes
+	 * @param anchor the result of {@link #foldLeaves(GemEngine, boolean)}
+	 */
+	static void unfoldLeaves(GemEngine g, int[] anchor) {
+
+		boolean[] placed = new boolean[g.n];
+		for(int v = 0; v < g.n; ++v) {
+			placed[v] = anchor[v] == -1;
+		}
+
+		placeFans(g, anchor, placed, Double.NaN, true);
+	}
+
+	/**
+	 * See {@link #aroundParents(GemEngine, int[], boolean[], double)}. If
+	 * awayFromCenter is set, the fans of nodes without a parent are half
+	 * circles facing away from the barycenter of the placed nodes instead
+	 * of full rings.
+	 */
+	private static boolean[] placeFans(GemEngine g, int[] parent, boolean[] placed,
+			double startTemp, boolean awayFromCenter) {
+
+		int n = g.n;
+
+		double centerX = 0;
+		double centerY = 0;
+		if(awayFromCenter) {
+			int count = 0;
+			for(int v = 0; v < n; ++v) {
+				if(placed[v]) {
+					centerX += g.x.get(v);
+					centerY += g.y.get(v);
+					++count;
+				}
+			}
+			centerX /= Math.max(count, 1);
+			centerY /= Math.max(count, 1);
+		}
+
+		// The children that still have to be placed, grouped by parent.
+		int[] start = new int[n + 1];
+		for(int c = 0; c < n; ++c) {
+			if(!placed[c] && parent[c] != -1) {
+				++start[parent[c] + 1];
+			}
+		}
+		for(int p = 0; p < n; ++p) {
+			start[p + 1] += start[p];
+		}
+		int[] children = new int[start[n]];
+		int[] fill = Arrays.copyOf(start, n);
+		for(int c = 0; c < n; ++c) {
+			if(!placed[c] && parent[c] != -1) {
+				children[fill[parent[c]]++] = c;
+			}
+		}
+
+		boolean[] onFan = new boolean[n];
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		for(int v = 0; v < n; ++v) {
+			if(placed[v] || parent[v] == -1) {
+				queue[tail++] = v;
+			}
+		}
+
+		double length = g.desiredEdgeLength;
+
+		while(head < tail) {
+
+			int p = queue[head++];
+			int k = start[p + 1] - start[p];
+			if(k == 0) {
+				continue;
+			}
+
+			// Point the fan away from the grandparent, if there is one.
+			double width = 2 * Math.PI;
+			double base = g.random().nextDouble() * 2 * Math.PI;
+			int gp = parent[p];
+			if(gp != -1 && (g.x.get(p) != g.x.get(gp) || g.y.get(p) != g.y.get(gp))) {
+				width = Math.PI;
+				base = Math.atan2(g.y.get(p) - g.y.get(gp), g.x.get(p) - g.x.get(gp)) - width / 2;
+			} else if(gp == -1 && awayFromCenter && (g.x.get(p) != centerX || g.y.get(p) != centerY)) {
+				width = Math.PI;
+				base = Math.atan2(g.y.get(p) - centerY, g.x.get(p) - centerX) - width / 2;
+			}
+
+			double radius = Math.max(length, k * length / (2 * width));
+
+			for(int j = 0; j < k; ++j) {
+
+				int c = children[start[p] + j];
+				double angle = base + width * (j + 0.5) / k;
+
+				g.x.put(c, g.x.get(p) + radius * Math.cos(angle));
+				g.y.put(c, g.y.get(p) + radius * Math.sin(angle));
+				if(!Double.isNaN(startTemp)) {
+					g.temp.put(c, startTemp);
+				}
+				g.skew.put(c, 0);
+				g.impX.put(c, 0);
+				g.impY.put(c, 0);
+
+				onFan[c] = true;
+				queue[tail++] = c;
+			}
+		}
+
+		return onFan;
+	}
+
+	/**
+	 * Places all the nodes with Pivot MDS (Brandes and Pich). The shortest
+	 * path distances from a few pivots are found with breadth first searches,
+	 * double centered, and projected onto the two main axes found by power
+	 * iteration on the small pivots * pivots matrix. The result is scaled so
+	 * that the average edge has the desired length. O(k * m + n * k^2) time
+	 * for k pivots. Every connected component is placed on its own, and the
+	 * components are then packed next to each other by GemComponents.
+	 * <p>
+	 * The first MAX_MIN_PIVOTS pivots are picked by max-min selection, which
+	 * finds the extremes of the graph that span the main axes. Each of them
+	 * is the node furthest from the ones before, so their searches run one
+	 * after the other. The other pivots are picked at random, as Brandes and
+	 * Pich found this about as good for more than a few pivots, so their
+	 * searches are independent and run on the pool, like the products with
+	 * the n * k distance matrix.
+	 * @param g the engine holding the nodes
+	 * @param pivots the number of pivots
+	 * @param pool the pool the searches and the products run on
+	 */
+	static void pivotMds(GemEngine g, int pivots, ForkJoinPool pool) {
+
+		int[][] components = GemComponents.find(g);
+		if(components.length == 1) {
+			pivotMdsConnected(g, pivots, pool);
+			return;
+		}
+
+		GemEngine[] parts = new GemEngine[components.length];
+		for(int c = 0; c < components.length; ++c) {
+			parts[c] = g.subgraph(components[c]);
+			pivotMdsConnected(parts[c], pivots, pool);
+		}
+		GemComponents.pack(g, parts, g.desiredEdgeLength);
+	}
+
+	/**
+	 * See {@link #pivotMds(GemEngine, int, ForkJoinPool)}, for a connected
+	 * graph. Graphs with fewer than three nodes are put on a line.
+	 */
+	private static void pivotMdsConnected(GemEngine g, int pivots, ForkJoinPool pool) {
+
+		int n = g.n;
+		int k = Math.min(pivots, n);
+		if(k < 3) {
+			for(int v = 0; v < n; ++v) {
+				g.x.put(v, v * g.desiredEdgeLength);
+				g.y.put(v, 0);
+			}
+			return;
+		}
+
+		// The distance of every node to every pivot, column by column.
+		double[][] c = new double[k][];
+		boolean[] isPivot = new boolean[n];
+
+		// Max-min selection: the next pivot is the node furthest from all the
+		// pivots so far, starting with the node with the highest degree.
+		int maxMin = Math.min(k, MAX_MIN_PIVOTS);
+		double[] nearest = new double[n];
+		Arrays.fill(nearest, Double.MAX_VALUE);
+		int[] queue = new int[n];
+		int pivot = 0;
+		for(int v = 1; v < n; ++v) {
+			if(g.degree(v) > g.degree(pivot)) {
+				pivot = v;
+			}
+		}
+		for(int p = 0; p < maxMin; ++p) {
+			isPivot[pivot] = true;
+			c[p] = distances(g, pivot, queue);
+			int next = 0;
+			for(int v = 0; v < n; ++v) {
+				nearest[v] = Math.min(nearest[v], c[p][v]);
+				if(nearest[v] > nearest[next]) {
+					next = v;
+				}
+			}
+			pivot = next;
+		}
+
+		// The other pivots at random, a search per task.
+		int[] others = new int[k - maxMin];
+		SplittableRandom pick = g.random();
+		for(int p = 0; p < others.length;) {
+			int v = pick.nextInt(n);
+			if(!isPivot[v]) {
+				isPivot[v] = true;
+				others[p++] = v;
+			}
+		}
+		pool.invoke(new RangeTask(maxMin, k, 1, p -> c[p] = distances(g, others[p - maxMin], new int[n])));
+
+		// Double centering of the squared distances.
+		double[] rowMean = new double[n];
+		double total = 0;
+		for(int p = 0; p < k; ++p) {
+			double columnMean = 0;
+			for(int v = 0; v < n; ++v) {
+				double d2 = c[p][v] * c[p][v];
+				c[p][v] = d2;
+				rowMean[v] += d2 / k;
+				columnMean += d2 / n;
+			}
+			for(int v = 0; v < n; ++v) {
+				c[p][v] -= columnMean;
+			}
+			total += columnMean / k;
+		}
+		for(int p = 0; p < k; ++p) {
+			for(int v = 0; v < n; ++v) {
+				c[p][v] = -0.5 * (c[p][v] - rowMean[v] + total);
+			}
+		}
+
+		// The pivots * pivots matrix C^T C, a row of the upper triangle per task.
+		double[][] m = new double[k][k];
+		pool.invoke(new RangeTask(0, k, 1, p -> {
+			for(int q = p; q < k; ++q) {
+				double sum = 0;
+				for(int v = 0; v < n; ++v) {
+					sum += c[p][v] * c[q][v];
+				}
+				m[p][q] = sum;
+				m[q][p] = sum;
+			}
+		}));
+
+		double[] first = powerIteration(m, null, g.random());
+		double[] second = powerIteration(m, first, g.random());
+
+		pool.invoke(new RangeTask(0, n, PROJECTION_GRAIN, v -> {
+			double px = 0;
+			double py = 0;
+			for(int p = 0; p < k; ++p) {
+				px += c[p][v] * first[p];
+				py += c[p][v] * second[p];
+			}
+			g.x.put(v, px);
+			g.y.put(v, py);
+		}));
+
+		// Scale the layout so that the average edge has the desired length.
+		double length = 0;
+		int edges = 0;
+		for(int v = 0; v < n; ++v) {
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				length += Math.hypot(g.x.get(v) - g.x.get(u), g.y.get(v) - g.y.get(u));
+				++edges;
+			}
+		}
+		double scale = length > 0 ? g.desiredEdgeLength * edges / length : 1;
+
+		// Nodes with the same distances to all the pivots end up on top of
+		// each other, a small random offset separates them.
+		double jitter = g.desiredEdgeLength / 4;
+		SplittableRandom random = g.random();
+		for(int v = 0; v < n; ++v) {
+			g.x.put(v, g.x.get(v) * scale + (random.nextDouble() - 0.5) * jitter);
+			g.y.put(v, g.y.get(v) * scale + (random.nextDouble() - 0.5) * jitter);
+		}
+	}
+
+	/**
+	 * Returns the shortest path distance of every node from a node, the
+	 * number of edges times the desired edge length, found by breadth first
+	 * search. Only reads the engine, so searches can run side by side.
+	 */
+	private static double[] distances(GemEngine g, int source, int[] queue) {
+
+		double[] d = new double[g.n];
+		Arrays.fill(d, -1);
+		d[source] = 0;
+		queue[0] = source;
+		int head = 0;
+		int tail = 1;
+		while(head < tail) {
+			int v = queue[head++];
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				if(d[u] < 0) {
+					d[u] = d[v] + g.desiredEdgeLength;
+					queue[tail++] = u;
+				}
+			}
+		}
+
+		return d;
+	}
+
+	/**
+	 * Finds the eigenvector of the largest eigenvalue of a symmetric matrix,
+	 * orthogonal to another eigenvector if one is given, starting from a
+	 * random vector.
+	 */
+	private static double[] powerIteration(double[][] m, double[] orthogonal, SplittableRandom random) {
+
+		int k = m.length;
+		double[] v = new double[k];
+		for(int p = 0; p < k; ++p) {
+			v[p] = random.nextDouble() - 0.5;
+		}
+
+		double[] next = new double[k];
+		for(int iteration = 0; iteration < 100; ++iteration) {
+
+			if(orthogonal != null) {
+				double dot = 0;
+				for(int p = 0; p < k; ++p) {
+					dot += v[p] * orthogonal[p];
+				}
+				for(int p = 0; p < k; ++p) {
+					v[p] -= dot * orthogonal[p];
+				}
+			}
+
+			double norm = 0;
+			for(int p = 0; p < k; ++p) {
+				double sum = 0;
+				for(int q = 0; q < k; ++q) {
+					sum += m[p][q] * v[q];
+				}
+				next[p] = sum;
+				norm += sum * sum;
+			}
+
+			norm = Math.sqrt(norm);
+			if(norm == 0) {
+				break;
+			}
+			for(int p = 0; p < k; ++p) {
+				v[p] = next[p] / norm;
+			}
+		}
+
+		return v;
+	}
+
+	// Runs an action for every index from 'from' to 'to' (exclusive), splitting
+	// the range in halves until at most 'grain' indices are left per task.
+	private static final class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final int grain;
+		private final IntConsumer action;
+
+		private RangeTask(int from, int to, int grain, IntConsumer action) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+
+			if(to - from <= grain) {
+				for(int i = from; i < to; ++i) {
+					action.accept(i);
+				}
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new RangeTask(from, middle, grain, action),
+					new RangeTask(middle, to, grain, action));
+		}
+	}
+}
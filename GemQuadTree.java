@@ -0,0 +1,287 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+
+/*
+ * Quadtree over the coordinates of a set of nodes, used to approximate the
+ * repulsive forces in GEM with the Barnes-Hut method. A group of nodes that
+ * is far away from the node being moved is treated as one single mass that
+ * is located at the group's center of mass.
+ *
+ * The tree is stored in flat arrays that are reused between builds, so
+ * rebuilding it every round does not create any garbage once the arrays
+ * have grown large enough.
+ */
+final class GemQuadTree {
+
+	// The maximum depth of the tree. Nodes that still share a cell at this
+	// depth (nodes that are placed on top of each other) share one leaf.
+	private static final int MAX_DEPTH = 40;
+
+	// Marks a missing child or a cell without a node.
+	private static final int EMPTY = -1;
+
+	// The four children of every cell.
+	private int[] children = new int[0];
+
+	// The node stored in a leaf, EMPTY for internal cells.
+	private int[] body = new int[0];
+
+	// The number of nodes inside every cell.
+	private double[] mass = new double[0];
+
+	// The center of mass of every cell.
+	private double[] comX = new double[0];
+	private double[] comY = new double[0];
+
+	// The center and the half width of every cell.
+	private double[] centerX = new double[0];
+	private double[] centerY = new double[0];
+	private double[] half = new double[0];
+
+	// The number of cells currently in use.
+	private int cellCount = 0;
+
+	/**
+	 * Creates a stack that can be used to walk the tree. Every thread that
+	 * calls {@link #accumulateRepulsion} needs a stack of its own.
+	 * @return a new stack
+	 */
+	static int[] newStack() {
+		return new int[4 * MAX_DEPTH + 4];
+	}
+
+	/**
+	 * Rebuilds the tree from the given coordinates.
+	 * @param xs the x-coordinates of the nodes
+	 * @param ys the y-coordinates of the nodes
+	 * @param n the number of nodes to insert, starting at index 0
+	 */
+	void build(double[] xs, double[] ys, int n) {
+		build(xs, ys, n, null);
+	}
+
+	/**
+	 * Rebuilds the tree from the given coordinates, inserting the nodes in
+	 * the given sequence. Cells are stored in the order they are created,
+	 * so inserting nodes that are close to each other one after another
+	 * keeps the cells that are walked together close in memory.
+	 * @param xs the x-coordinates of the nodes
+	 * @param ys the y-coordinates of the nodes
+	 * @param n the number of nodes to insert, starting at index 0
+	 * @param sequence the order in which the nodes are inserted, null for 0 to n - 1
+	 */
+	void build(double[] xs, double[] ys, int n, int[] sequence) {
+
+		cellCount = 0;
+		if(n == 0) {
+			return;
+		}
+
+		// Find the bounding box of all the nodes.
+		double minX = xs[0], maxX = xs[0];
+		double minY = ys[0], maxY = ys[0];
+		for(int i = 1; i < n; ++i) {
+			minX = Math.min(minX, xs[i]);
+			maxX = Math.max(maxX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+
+		double size = Math.max(Math.max(maxX - minX, maxY - minY), 1);
+		newCell((minX + maxX) / 2, (minY + maxY) / 2, size / 2 * 1.0001);
+
+		for(int k = 0; k < n; ++k) {
+			int i = sequence != null ? sequence[k] : k;
+			insert(i, xs[i], ys[i]);
+		}
+
+		// Turn the coordinate sums into centers of mass.
+		for(int c = 0; c < cellCount; ++c) {
+			comX[c] /= mass[c];
+			comY[c] /= mass[c];
+		}
+	}
+
+	/**
+	 * Adds the approximated repulsive forces from all the nodes in the tree
+	 * to the impulse of a node.
+	 * @param x the x-coordinate of the node
+	 * @param y the y-coordinate of the node
+	 * @param self the index of the node in the tree, or -1 if it is not part of it
+	 * @param theta the opening angle
+	 * @param desSquared the desired edge length squared
+	 * @param euclidean true if the Euclidean distance is used, false for the Manhattan distance
+	 * @param impulse the impulse that the forces are added to
+	 * @param stack a stack created by {@link #newStack()}
+	 */
+	void accumulateRepulsion(double x, double y, int self, double theta,
+			double desSquared, boolean euclidean, double[] impulse, int[] stack) {
+
+		if(cellCount == 0) {
+			return;
+		}
+
+		double forceX = 0;
+		double forceY = 0;
+
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+
+			int c = stack[--top];
+
+			// A cell that contains the node is always opened. Its center of
+			// mass can be far enough away to pass the test below, but part
+			// of its mass would be the node itself.
+			boolean inside = Math.abs(x - centerX[c]) <= half[c] && Math.abs(y - centerY[c]) <= half[c];
+
+			double cellMass = mass[c];
+			double cellX = comX[c];
+			double cellY = comY[c];
+
+			// A leaf shared by nodes on top of each other: leave the node out.
+			if(inside && self != EMPTY && body[c] != EMPTY && cellMass > 1) {
+				cellX = (cellX * cellMass - x) / (cellMass - 1);
+				cellY = (cellY * cellMass - y) / (cellMass - 1);
+				cellMass -= 1;
+			}
+
+			double dx = x - cellX;
+			double dy = y - cellY;
+			double distance;
+
+			if(euclidean) {
+				distance = Math.sqrt(dx * dx + dy * dy);
+			} else {
+				distance = Math.abs(dx) + Math.abs(dy);
+			}
+
+			// A leaf, or a cell that is far enough away to be treated as one mass.
+			if(body[c] != EMPTY || (!inside && 2 * half[c] < theta * distance)) {
+				if(distance != 0 && !(body[c] == self && cellMass == 1)) {
+					double scale = cellMass * desSquared / (distance * distance);
+					forceX += dx * scale;
+					forceY += dy * scale;
+				}
+				continue;
+			}
+
+			// Otherwise: open the cell.
+			for(int q = 4 * c; q < 4 * c + 4; ++q) {
+				if(children[q] != EMPTY) {
+					stack[top++] = children[q];
+				}
+			}
+		}
+
+		impulse[0] += forceX;
+		impulse[1] += forceY;
+	}
+
+	/**
+	 * Inserts a node into the tree, starting at the root.
+	 */
+	private void insert(int i, double x, double y) {
+
+		int cell = 0;
+		int depth = 0;
+		while(true) {
+
+			// An empty cell: the node becomes a leaf.
+			if(mass[cell] == 0) {
+				body[cell] = i;
+				mass[cell] = 1;
+				comX[cell] = x;
+				comY[cell] = y;
+				return;
+			}
+
+			if(body[cell] != EMPTY) {
+
+				// Too deep: the nodes share the leaf.
+				if(depth >= MAX_DEPTH) {
+					mass[cell] += 1;
+					comX[cell] += x;
+					comY[cell] += y;
+					return;
+				}
+
+				// Move the node that was stored in the leaf down one level.
+				int old = body[cell];
+				int child = childFor(cell, comX[cell] / mass[cell], comY[cell] / mass[cell]);
+				body[child] = old;
+				mass[child] = mass[cell];
+				comX[child] = comX[cell];
+				comY[child] = comY[cell];
+				body[cell] = EMPTY;
+			}
+
+			mass[cell] += 1;
+			comX[cell] += x;
+			comY[cell] += y;
+
+			cell = childFor(cell, x, y);
+			++depth;
+		}
+	}
+
+	/**
+	 * Returns the child of a cell that contains the given point,
+	 * the child is created if it does not exist yet.
+	 */
+	private int childFor(int cell, double x, double y) {
+
+		int quadrant = (x >= centerX[cell] ? 1 : 0) | (y >= centerY[cell] ? 2 : 0);
+		int child = children[4 * cell + quadrant];
+
+		if(child == EMPTY) {
+			double h = half[cell] / 2;
+			double cx = centerX[cell] + ((quadrant & 1) != 0 ? h : -h);
+			double cy = centerY[cell] + ((quadrant & 2) != 0 ? h : -h);
+			child = newCell(cx, cy, h);
+			children[4 * cell + quadrant] = child;
+		}
+
+		return child;
+	}
+
+	/**
+	 * Creates a new empty cell and returns its index.
+	 */
+	private int newCell(double cx, double cy, double h) {
+
+		if(cellCount == mass.length) {
+			grow();
+		}
+
+		int c = cellCount++;
+		children[4 * c] = EMPTY;
+		children[4 * c + 1] = EMPTY;
+		children[4 * c + 2] = EMPTY;
+		children[4 * c + 3] = EMPTY;
+		body[c] = EMPTY;
+		mass[c] = 0;
+		comX[c] = 0;
+		comY[c] = 0;
+		centerX[c] = cx;
+		centerY[c] = cy;
+		half[c] = h;
+		return c;
+	}
+
+	/**
+	 * Doubles the capacity of all the cell arrays.
+	 */
+	private void grow() {
+		int capacity = Math.max(64, mass.length * 2);
+		children = Arrays.copyOf(children, capacity * 4);
+		body = Arrays.copyOf(body, capacity);
+		mass = Arrays.copyOf(mass, capacity);
+		comX = Arrays.copyOf(comX, capacity);
+		comY = Arrays.copyOf(comY, capacity);
+		centerX = Arrays.copyOf(centerX, capacity);
+		centerY = Arrays.copyOf(centerY, capacity);
+		half = Arrays.copyOf(half, capacity);
+	}
+}
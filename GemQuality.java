@@ -0,0 +1,173 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Scores the positions of the nodes of an engine by one of the measures
+ * of QualityMeasure. Used to pick the best of several runs of GEM on the
+ * same graph. Lower is better.
+ */
+final class GemQuality {
+
+	// The maximum number of nodes the graph distances are taken from by STRESS.
+	private static final int STRESS_SOURCES = 50;
+
+	private GemQuality() {
+	}
+
+	/**
+	 * Scores the positions of the nodes of an engine.
+	 * @param g the engine holding the graph
+	 * @param measure the measure
+	 * @return the score, lower is better
+	 */
+	static double score(GemEngine g, QualityMeasure measure) {
+		switch(measure) {
+		case CROSSINGS:
+			return crossings(g);
+		case STRESS:
+			return stress(g);
+		default:
+			return edgeLengthVariance(g);
+		}
+	}
+
+	/**
+	 * Counts the pairs of edges that cross. The edges are sorted by their
+	 * left end, so only the edges that overlap along the x-axis are compared.
+	 */
+	private static double crossings(GemEngine g) {
+
+		// Every edge once, from its lower to its higher node.
+		int m = 0;
+		int[] from = new int[g.targets.capacity()];
+		int[] to = new int[g.targets.capacity()];
+		for(int v = 0; v < g.n; ++v) {
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				if(v < u) {
+					from[m] = v;
+					to[m++] = u;
+				}
+			}
+		}
+
+		double[] minX = new double[m];
+		double[] maxX = new double[m];
+		Integer[] sorted = new Integer[m];
+		for(int k = 0; k < m; ++k) {
+			minX[k] = Math.min(g.x.get(from[k]), g.x.get(to[k]));
+			maxX[k] = Math.max(g.x.get(from[k]), g.x.get(to[k]));
+			sorted[k] = k;
+		}
+		Arrays.sort(sorted, Comparator.comparingDouble((Integer k) -> minX[k]));
+
+		long count = 0;
+		for(int a = 0; a < m; ++a) {
+			int p = sorted[a];
+			for(int b = a + 1; b < m && minX[sorted[b]] <= maxX[p]; ++b) {
+				int q = sorted[b];
+				if(from[p] == from[q] || from[p] == to[q] || to[p] == from[q] || to[p] == to[q]) {
+					continue;
+				}
+				if(cross(g, from[p], to[p], from[q], to[q])) {
+					++count;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns whether the segments from a to b and from c to d cross.
+	 */
+	private static boolean cross(GemEngine g, int a, int b, int c, int d) {
+		double abc = orientation(g, a, b, c);
+		double abd = orientation(g, a, b, d);
+		double cda = orientation(g, c, d, a);
+		double cdb = orientation(g, c, d, b);
+		return abc * abd < 0 && cda * cdb < 0;
+	}
+
+	/**
+	 * Returns the cross product of b - a and c - a: positive if c is to
+	 * the left of the line from a to b, negative if it is to the right.
+	 */
+	private static double orientation(GemEngine g, int a, int b, int c) {
+		return (g.x.get(b) - g.x.get(a)) * (g.y.get(c) - g.y.get(a)) - (g.y.get(b) - g.y.get(a)) * (g.x.get(c) - g.x.get(a));
+	}
+
+	/**
+	 * Calculates the stress between up to STRESS_SOURCES nodes, spread
+	 * evenly over the node numbers, and all the nodes they can reach. The
+	 * same graph always uses the same nodes, so runs can be compared.
+	 */
+	private static double stress(GemEngine g) {
+
+		int sources = Math.min(STRESS_SOURCES, g.n);
+		int[] distance = new int[g.n];
+		int[] queue = new int[g.n];
+		double sum = 0;
+		long pairs = 0;
+
+		for(int k = 0; k < sources; ++k) {
+
+			int s = (int) ((long) k * g.n / sources);
+
+			// Breadth first search for the graph distances from s.
+			Arrays.fill(distance, -1);
+			distance[s] = 0;
+			int head = 0;
+			int tail = 0;
+			queue[tail++] = s;
+			while(head < tail) {
+				int v = queue[head++];
+				for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+					int u = g.targets.get(e);
+					if(distance[u] == -1) {
+						distance[u] = distance[v] + 1;
+						queue[tail++] = u;
+					}
+				}
+			}
+
+			for(int t = 1; t < tail; ++t) {
+				int v = queue[t];
+				double desired = distance[v] * g.desiredEdgeLength;
+				double actual = Math.hypot(g.x.get(v) - g.x.get(s), g.y.get(v) - g.y.get(s));
+				double error = (actual - desired) / desired;
+				sum += error * error;
+				++pairs;
+			}
+		}
+		return pairs > 0 ? sum / pairs : 0;
+	}
+
+	/**
+	 * Calculates the variance of the edge lengths divided by the squared
+	 * average edge length.
+	 */
+	private static double edgeLengthVariance(GemEngine g) {
+
+		double sum = 0;
+		double sumSquares = 0;
+		int m = 0;
+		for(int v = 0; v < g.n; ++v) {
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				if(v < u) {
+					double length = Math.hypot(g.x.get(u) - g.x.get(v), g.y.get(u) - g.y.get(v));
+					sum += length;
+					sumSquares += length * length;
+					++m;
+				}
+			}
+		}
+		if(m == 0 || sum == 0) {
+			return 0;
+		}
+		double mean = sum / m;
+		return (sumSquares / m - mean * mean) / (mean * mean);
+	}
+}
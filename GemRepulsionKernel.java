@@ -0,0 +1,101 @@
+package prefux.action.layout.graph;
+
+/*
+ * The loop that adds up the repulsive forces of all the nodes on one node
+ * in single precision, used by the exact mode of GemEngine when
+ * singlePrecision is set.
+ *
+ * The fastest kernel available is picked once: GemVectorKernel if it has
+ * been added to the project and the JDK Vector API can be used, the plain
+ * loop below otherwise. GemVectorKernel is optional because the Vector API
+ * is an incubator module: it needs Java 16 or newer and the option
+ * --add-modules jdk.incubator.vector, both to compile and to run. It is
+ * kept in the directory vector, out of the sources that always compile.
+ *
+ * The terms are added up in float over blocks of BLOCK nodes, and the sums
+ * of the blocks in double, so that the rounding error of a sum does not
+ * grow with the number of nodes.
+ */
+interface GemRepulsionKernel {
+
+	// The kernel used by all the engines.
+	GemRepulsionKernel INSTANCE = load();
+
+	// The number of nodes whose terms are added up in float before the sum is added to a double.
+	int BLOCK = 256;
+
+	/**
+	 * Adds the repulsive forces of the nodes at xs[0..count - 1], ys[0..count - 1]
+	 * on the node at (xi, yi) to the impulse. Nodes in the same position as
+	 * the node, like the node itself, are skipped.
+	 * @param xi the x-coordinate of the node
+	 * @param yi the y-coordinate of the node
+	 * @param xs the x-coordinates of the nodes
+	 * @param ys the y-coordinates of the nodes
+	 * @param count the number of nodes
+	 * @param desSquared the desired edge length squared
+	 * @param euclideanDistance true for the Euclidean distance, false for the Manhattan distance
+	 * @param impulse the impulse, x and y
+	 */
+	void accumulate(float xi, float yi, float[] xs, float[] ys, int count, float desSquared,
+			boolean euclideanDistance, double[] impulse);
+
+	/**
+	 * Returns GemVectorKernel if it can be used, the scalar kernel otherwise.
+	 */
+	static GemRepulsionKernel load() {
+		try {
+			GemRepulsionKernel kernel = (GemRepulsionKernel) Class
+					.forName("prefux.action.layout.graph.GemVectorKernel").getDeclaredConstructor().newInstance();
+
+			// Fails here if the class is there but the module is not.
+			kernel.accumulate(0, 0, new float[1], new float[1], 1, 1, true, new double[2]);
+			return kernel;
+		} catch(ReflectiveOperationException | LinkageError e) {
+			return new Scalar();
+		}
+	}
+
+	/*
+	 * The same loop as the double precision one in GemEngine.
+	 */
+	final class Scalar implements GemRepulsionKernel {
+
+		@Override
+		public void accumulate(float xi, float yi, float[] xs, float[] ys, int count, float desSquared,
+				boolean euclideanDistance, double[] impulse) {
+
+			double sumX = 0;
+			double sumY = 0;
+			for(int start = 0; start < count; start += BLOCK) {
+
+				int end = Math.min(start + BLOCK, count);
+				float forceX = 0;
+				float forceY = 0;
+				if(euclideanDistance) {
+					for(int j = start; j < end; ++j) {
+						float dx = xi - xs[j];
+						float dy = yi - ys[j];
+						float d2 = dx * dx + dy * dy;
+						float scale = d2 != 0 ? desSquared / d2 : 0;
+						forceX += dx * scale;
+						forceY += dy * scale;
+					}
+				} else {
+					for(int j = start; j < end; ++j) {
+						float dx = xi - xs[j];
+						float dy = yi - ys[j];
+						float distance = Math.abs(dx) + Math.abs(dy);
+						float scale = distance != 0 ? desSquared / (distance * distance) : 0;
+						forceX += dx * scale;
+						forceY += dy * scale;
+					}
+				}
+				sumX += forceX;
+				sumY += forceY;
+			}
+			impulse[0] += sumX;
+			impulse[1] += sumY;
+		}
+	}
+}
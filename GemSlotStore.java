@@ -0,0 +1,169 @@
+package prefux.action.layout.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.DoubleBuffer;
+
+/*
+ * The state GraphEmbedderLayout2 keeps for every slot between runs: the
+ * position, the temperature, the skew and the last impulse. The fields of
+ * a slot are stored next to each other in one buffer, which lives on the
+ * heap, off the heap in direct memory, or in a file that is mapped into
+ * memory.
+ *
+ * Off the heap, the state of a large explored graph does not count
+ * against the heap, and the garbage collector never copies it. A mapped
+ * file can even be larger than the memory of the machine: the operating
+ * system keeps the parts that are in use in memory and writes the rest
+ * back to the file.
+ *
+ * The buffer is indexed by int, so it holds at most 2 GB, which is about
+ * 44 million slots.
+ */
+final class GemSlotStore {
+
+	// The fields of a slot.
+	static final int X = 0;
+	static final int Y = 1;
+	static final int TEMP = 2;
+	static final int SKEW = 3;
+	static final int IMP_X = 4;
+	static final int IMP_Y = 5;
+
+	// The number of fields of a slot.
+	private static final int FIELDS = 6;
+
+	// The largest number of slots that fit into a buffer.
+	static final int MAX_SLOTS = (int) (GemMemory.MAX_BYTES / (FIELDS * Double.BYTES));
+
+	// True if the buffer is off the heap.
+	private final boolean offHeap;
+
+	// The file the buffer is mapped from, null if there is none.
+	private final File file;
+
+	// The fields of all the slots, slot after slot.
+	private DoubleBuffer buffer = DoubleBuffer.allocate(0);
+
+	// The number of slots that fit into the buffer.
+	private int capacity = 0;
+
+	/**
+	 * Creates a store without room for any slots.
+	 * @param offHeap true to keep the state off the heap
+	 * @param file the file to map the state from, null for direct memory.
+	 * Ignored on the heap. The file is created or overwritten.
+	 */
+	GemSlotStore(boolean offHeap, File file) {
+		this.offHeap = offHeap;
+		this.file = offHeap ? file : null;
+	}
+
+	/**
+	 * Returns whether the state is kept off the heap.
+	 * @return true if the state is off the heap
+	 */
+	boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Returns the file the state is mapped from.
+	 * @return the file, null if there is none
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Makes sure there is room for a number of slots. The room is at least
+	 * doubled, up to {@link #MAX_SLOTS}, and the slots keep their state.
+	 * @param slots the number of slots
+	 * @throws IllegalArgumentException if there are more than {@link #MAX_SLOTS} slots
+	 * @throws UncheckedIOException if the file cannot be mapped
+	 */
+	void ensureCapacity(int slots) {
+
+		if(slots <= capacity) {
+			return;
+		}
+		if(slots > MAX_SLOTS) {
+			throw new IllegalArgumentException("The state holds at most " + MAX_SLOTS + " slots, "
+					+ slots + " slots were requested.");
+		}
+
+		int newCapacity = (int) Math.max(64, Math.max(slots, Math.min(2L * capacity, MAX_SLOTS)));
+		DoubleBuffer newBuffer = allocate(newCapacity);
+
+		// A mapped file keeps its contents when it is mapped again.
+		if(file == null) {
+			DoubleBuffer old = buffer.duplicate();
+			old.clear();
+			newBuffer.put(old);
+			newBuffer.clear();
+		}
+
+		buffer = newBuffer;
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Returns a field of a slot.
+	 * @param slot the slot
+	 * @param field the field, like {@link #X}
+	 * @return the value
+	 */
+	double get(int slot, int field) {
+		return buffer.get(slot * FIELDS + field);
+	}
+
+	/**
+	 * Sets a field of a slot.
+	 * @param slot the slot
+	 * @param field the field, like {@link #X}
+	 * @param value the value
+	 */
+	void set(int slot, int field, double value) {
+		buffer.put(slot * FIELDS + field, value);
+	}
+
+	/**
+	 * Copies the slots of another store into this one, and makes room for
+	 * as many slots as there are in the other store.
+	 * @param other the store to copy from
+	 * @param slots the number of slots to copy
+	 */
+	void copyFrom(GemSlotStore other, int slots) {
+		ensureCapacity(Math.max(slots, other.capacity));
+		for(int i = 0; i < slots * FIELDS; ++i) {
+			buffer.put(i, other.buffer.get(i));
+		}
+	}
+
+	/**
+	 * Creates a buffer with room for a number of slots.
+	 */
+	private DoubleBuffer allocate(int slots) {
+
+		long bytes = (long) slots * FIELDS * Double.BYTES;
+
+		if(!offHeap) {
+			return DoubleBuffer.allocate(slots * FIELDS);
+		}
+		if(file == null) {
+			return GemMemory.allocateDirect(bytes).asDoubleBuffer();
+		}
+
+		// The mapping stays valid after the file has been closed.
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if(capacity == 0) {
+				raf.setLength(0);
+			}
+			return GemMemory.map(raf.getChannel(), bytes).asDoubleBuffer();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
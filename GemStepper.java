@@ -0,0 +1,236 @@
+package prefux.action.layout.graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+ * The rounds of one run of GEM, as a list of stages that can be worked
+ * through one round at a time. A stage runs rounds on one engine until the
+ * convergence policy says so or its round limit is reached. A stage can
+ * have an action that runs when the stage is entered, like placing the
+ * nodes of a multilevel level around the nodes of the coarser level
+ * before it. A stage can also run the steppers of independent parts of
+ * the graph side by side, one round each at a time.
+ *
+ * Because all the state lives in the engines and here, the caller decides
+ * how many rounds to run at a time, and can stop at any point and continue
+ * later. See GraphEmbedderLayout.step() and runFor().
+ */
+final class GemStepper {
+
+	/*
+	 * The rounds on one engine, or on the parts of one engine.
+	 */
+	private static final class Stage {
+
+		private final GemEngine engine;
+
+		private final int roundLimit;
+
+		// Runs when the stage is entered, can be null.
+		private final Runnable enter;
+
+		// The steppers of the parts, null if the rounds run on the engine itself.
+		private final List<GemStepper> parts;
+
+		// The pool the rounds of the parts run on.
+		private final ForkJoinPool pool;
+
+		// Runs after every round of the parts.
+		private final Runnable afterRound;
+
+		private Stage(GemEngine engine, int roundLimit, Runnable enter,
+				List<GemStepper> parts, ForkJoinPool pool, Runnable afterRound) {
+			this.engine = engine;
+			this.roundLimit = roundLimit;
+			this.enter = enter;
+			this.parts = parts;
+			this.pool = pool;
+			this.afterRound = afterRound;
+		}
+	}
+
+	private final List<Stage> stages = new ArrayList<>();
+
+	// Decides when a stage has converged.
+	private final ConvergencePolicy policy;
+
+	// The time the stepper was created, in nanoseconds.
+	private final long startTime = System.nanoTime();
+
+	// The index of the current stage, -1 before the first one is entered.
+	private int current = -1;
+
+	// The number of rounds run in the current stage.
+	private int rounds = 0;
+
+	// True if the policy has reported convergence for the current stage.
+	private boolean converged = false;
+
+	// The temperature after the last round, NaN before the first one.
+	private double temperature = Double.NaN;
+
+	/**
+	 * Creates a stepper without stages.
+	 * @param policy decides when a stage has converged
+	 */
+	GemStepper(ConvergencePolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Adds a stage at the end.
+	 * @param engine the engine holding the nodes to arrange
+	 * @param roundLimit the maximum number of rounds of the stage
+	 * @param enter runs when the stage is entered, can be null
+	 */
+	void add(GemEngine engine, int roundLimit, Runnable enter) {
+		stages.add(new Stage(engine, roundLimit, enter, null, null, null));
+	}
+
+	/**
+	 * Adds a stage at the end that runs the steppers of independent parts
+	 * of a graph. Every round runs one round of every part that is not done
+	 * yet, in parallel. The policy of this stepper is not asked, the parts
+	 * have their own. The stage ends when all the parts are done.
+	 * @param engine the engine holding the whole graph, which afterRound
+	 * keeps up to date
+	 * @param parts the steppers of the parts, every one only used by this stage
+	 * @param pool the pool the rounds of the parts run on
+	 * @param afterRound runs after every round, and when the stage is skipped
+	 */
+	void addParts(GemEngine engine, List<GemStepper> parts, ForkJoinPool pool, Runnable afterRound) {
+		stages.add(new Stage(engine, Integer.MAX_VALUE, null, parts, pool, afterRound));
+	}
+
+	/**
+	 * Returns whether all the stages have ended.
+	 * @return true if there is nothing left to do
+	 */
+	boolean isDone() {
+		advance();
+		return current == stages.size();
+	}
+
+	/**
+	 * Runs one round in the current stage.
+	 * @return the average temperature of the nodes after the round
+	 * @throws IllegalStateException if all the stages have ended
+	 */
+	double round() {
+
+		if(isDone()) {
+			throw new IllegalStateException("No rounds left.");
+		}
+
+		Stage stage = stages.get(current);
+		if(stage.parts != null) {
+			temperature = roundParts(stage);
+			++rounds;
+			return temperature;
+		}
+
+		GemEngine engine = stage.engine;
+		temperature = engine.round();
+		++rounds;
+		converged = policy.isConverged(rounds, temperature, engine.getDisplacement(),
+				System.nanoTime() - startTime);
+		return temperature;
+	}
+
+	/**
+	 * Returns the engine of the current stage, or of the last one if all
+	 * the stages have ended.
+	 * @return the engine, null if there are no stages
+	 */
+	GemEngine getEngine() {
+		advance();
+		if(stages.isEmpty()) {
+			return null;
+		}
+		return stages.get(Math.min(current, stages.size() - 1)).engine;
+	}
+
+	/**
+	 * Ends all the stages without running any more rounds. The actions of
+	 * the stages that have not been entered yet still run, so every engine
+	 * ends up with positions.
+	 */
+	void skip() {
+		while(current < stages.size()) {
+			if(current >= 0 && stages.get(current).parts != null) {
+				for(GemStepper part : stages.get(current).parts) {
+					part.skip();
+				}
+				stages.get(current).afterRound.run();
+			}
+			enter(current + 1);
+		}
+	}
+
+	/**
+	 * Runs one round of every part that is not done yet.
+	 * @return the average temperature of the parts, weighted by their number of nodes
+	 */
+	private double roundParts(Stage stage) {
+
+		List<Callable<Double>> tasks = new ArrayList<>();
+		for(GemStepper part : stage.parts) {
+			if(!part.isDone()) {
+				tasks.add(part::round);
+			}
+		}
+
+		for(Future<Double> future : stage.pool.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch(InterruptedException | ExecutionException e) {
+				throw new IllegalStateException("A round of a part has failed.", e);
+			}
+		}
+
+		double sum = 0;
+		int nodes = 0;
+		converged = true;
+		for(GemStepper part : stage.parts) {
+			converged &= part.isDone();
+			if(!Double.isNaN(part.temperature)) {
+				sum += part.temperature * part.getEngine().n;
+				nodes += part.getEngine().n;
+			}
+		}
+
+		stage.afterRound.run();
+		return nodes > 0 ? sum / nodes : 0;
+	}
+
+	/**
+	 * Moves on to the next stage while the current one has ended.
+	 */
+	private void advance() {
+		while(current < stages.size() && (current == -1 || ended(stages.get(current)))) {
+			enter(current + 1);
+		}
+	}
+
+	private boolean ended(Stage stage) {
+		return rounds >= stage.roundLimit || converged;
+	}
+
+	private void enter(int index) {
+		current = index;
+		rounds = 0;
+		converged = false;
+		if(current == stages.size()) {
+			return;
+		}
+		if(stages.get(current).enter != null) {
+			stages.get(current).enter.run();
+		}
+		policy.start(stages.get(current).engine.n);
+	}
+}
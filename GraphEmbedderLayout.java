@@ -30,15 +30,19 @@
  */
 package prefux.action.layout.graph;
 
+import java.io.File;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-
+import javafx.application.Platform;
 import prefux.action.layout.Layout;
 import prefux.data.Edge;
 import prefux.data.Graph;
@@ -48,8 +52,19 @@ import prefux.visual.VisualItem;
 
 public class GraphEmbedderLayout extends Layout {
 	
-	// List containing all the nodes.
-	private List<Vertex> nodeList = new ArrayList<>();
+	// The visual items of all the nodes. Item i belongs to node i of the engine.
+	private VisualItem[] items = new VisualItem[0];
+	
+	// The state of all the nodes.
+	private GemEngine engine;
+	
+	// Where the engines keep the state of the nodes. On the heap by
+	// default, see setOffHeap() and setStateDirectory().
+	private GemMemory memory = GemMemory.HEAP;
+	
+	// The engine whose nodes are moved by the rounds: engine, or the nodes
+	// of engine that are left when the leaves are folded.
+	private GemEngine core;
 	
 	// Indicates if the algorithm has been initialized.
 	private boolean initialized = false;
@@ -60,12 +75,45 @@ public class GraphEmbedderLayout extends Layout {
 	// Maximum number of rounds allowed.
 	private int maxRounds;
 	
-	// How often we want the visualization to update.
-	// If set to 1: visualization will be updated after every round.
-	// The visualization will always be updated when algorithm finishes,
-	// no matter what this constant is set to.
-	// WARNING: do not set this to zero!
-	private final int updateFrequency = 9999;
+	// How often we want the visualization to update, in milliseconds.
+	// The visualization is updated after the first round that ends at
+	// least this long after the last update, and always when the
+	// algorithm finishes.
+	private long updateInterval = 40;
+	
+	// The time of the last update of the visualization, in nanoseconds.
+	private long lastUpdate;
+	
+	// If set to true: the rounds run on a worker thread, and the positions
+	// are copied into the visual items on every JavaFX pulse. See
+	// GemBackgroundRunner.
+	private boolean asynchronous = false;
+	
+	// The value of asynchronous for the run in progress.
+	private boolean background = false;
+	
+	// Runs the rounds in the asynchronous mode.
+	private final GemBackgroundRunner runner = new GemBackgroundRunner(log);
+	
+	// Set when run() is called while the rounds are running in the
+	// background: the algorithm runs again once they are done. Only used
+	// on the JavaFX application thread, see run().
+	private boolean rerun = false;
+	
+	// Set by stop() to end the rounds running in the background.
+	private volatile boolean stopRequested = false;
+	
+	// The rounds of the run in progress, null if there is none. While the
+	// rounds run in the background, only the worker uses it, and finish()
+	// and abort() clear it on the JavaFX application thread.
+	private GemStepper stepper;
+	
+	// The node every folded node of the run in progress hangs from,
+	// null if no node is folded.
+	private int[] anchor;
+	
+	// The time the run in progress was started, in nanoseconds.
+	private long startTime;
 	
 	// The method used to calculate the distance between nodes.
 	// If set to true: Euclidean distance is used.
@@ -75,56 +123,86 @@ public class GraphEmbedderLayout extends Layout {
 	// The global temperature.
 	private double globalTemp;
 	
-	// The sum of the coordinates for all the nodes. This is
-	// used to calculate the location of the barycenter.
-	private double[] sumPos = new double[2];
-	
-	// The maximal temperature a node is allowed to have.
-	private final double maxTemp = 256;
-	
 	// The desired global temperature.
 	private final double desiredTemp = 3;
 	
-	// The desired length of the edges.
-	private final double desiredEdgeLength = 128;
+	// Decides when the rounds stop, before the maximum number of rounds is reached.
+	private ConvergencePolicy convergencePolicy = ConvergencePolicy.temperature(desiredTemp);
 	
-	// The gravitational constant.
-	private final double gravitationalConstant = (double) 1 / 32;
+	// The method used to calculate the repulsive forces.
+	private RepulsionMode repulsionMode = RepulsionMode.EXACT;
 	
-	// The opening angles for oscillation- and rotation-detection.
-	private final double oscillationOpeningAngle = Math.PI / 2;
-	private final double rotationOpeningAngle = Math.PI;
+	// The opening angle used by the Barnes-Hut approximation. A group of
+	// nodes is treated as one mass if the width of its cell divided by the
+	// distance to its center of mass is smaller than theta.
+	// Lower values are more accurate, but slower.
+	private double theta = 0.8;
 	
-	// The sensitivity for correcting oscillations and rotations.
-	private final double oscillationSensitivity = 1.1;
-	private double rotationSensitivity; // will be set in init()
+	// The number of mesh points along each axis used by the grid approximation.
+	// Must be a power of two. Forces between nodes closer than one mesh cell
+	// are smoothed out, so the mesh should be fine enough for the graph.
+	private int gridSize = 256;
 	
-	private class Vertex {
-		
-		// The corresponding visual item.
-		private final VisualItem item;
-		
-		// The impulse vector.
-		private double[] impulse = new double[2];
-		
-		// The temperature.
-		private double temp = 256;
-		
-		// The skew.
-		private double skew = 0;
-		
-		// The current coordinates.
-		private double[] coordinates = new double[2];
-		
-		// List containing the neighbors.
-		private List<Vertex> neighbors = new ArrayList<>();
-		
-		private Vertex(VisualItem item) {
-			this.item = item;
-			impulse[0] = 0;
-			impulse[1] = 0;
-		}
-	}
+	// If set to true: the graph is coarsened repeatedly, the coarsest graph
+	// is laid out first and every finer level starts from the positions of
+	// the level above it. See planMultilevel().
+	private boolean multilevel = false;
+	
+	// The maximum number of rounds used to refine every level except the coarsest one.
+	private int refinementRounds = 20;
+	
+	// The temperature the nodes start with when a level is refined.
+	private double refinementTemp = 32;
+	
+	// If set to true: the impulses are calculated in parallel. The shuffled
+	// nodes are split into batches of batchSize nodes; the impulses of a batch
+	// are all calculated from the same positions, then the nodes of the batch
+	// are moved one after another.
+	private boolean parallel = false;
+	
+	// The number of nodes in every batch of the parallel mode.
+	private int batchSize = 1024;
+	
+	// The pool that runs the parallel mode.
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	
+	// The method used to place the nodes before they are moved.
+	private InitialPlacement initialPlacement = InitialPlacement.RANDOM;
+	
+	// The number of pivots used by the Pivot MDS placement.
+	private int pivotCount = 50;
+	
+	// If set to true: the nodes with a single neighbor are left out of the
+	// rounds and placed around their neighbor afterwards.
+	private boolean leafFolding = false;
+	
+	// If set to true: chains of nodes hanging from the rest of the graph
+	// are folded as well, not just their last node.
+	private boolean foldChains = false;
+	
+	// If set to true: nodes that have been calm for a few rounds are
+	// parked and only moved now and then, until a neighbor moves a lot.
+	private boolean adaptiveScheduling = false;
+	
+	// A node is calm if its temperature and the distance it moves in a
+	// round are both below this.
+	private double parkTemperature = 4;
+	
+	// If set to true: the nodes are visited in blocks of nodes that are close
+	// to each other instead of in a completely random order.
+	private boolean spatialOrder = false;
+	
+	// If set to true: the exact mode calculates the repulsive forces in single precision.
+	private boolean singlePrecision = false;
+	
+	// If set to true: every connected component is laid out on its own,
+	// in parallel on the pool, and the components are packed afterwards.
+	private boolean componentLayout = false;
+	
+	// The number of runs of GEM that are made side by side, each from its
+	// own seed, and the measure used to keep the best one.
+	private int restarts = 1;
+	private QualityMeasure qualityMeasure = QualityMeasure.CROSSINGS;
 
 	protected transient VisualItem referrer;
 	protected String m_nodeGroup;
@@ -142,6 +220,458 @@ public class GraphEmbedderLayout extends Layout {
 		m_edgeGroup = PrefuseLib.getGroupName(graph, Graph.EDGES);
 	}
 	
+    /**
+     * Sets the method used to calculate the repulsive forces.
+     * {@link RepulsionMode#GRID} always uses the Euclidean distance, which
+     * is the distance this layout uses for the other modes as well.
+     * @param mode the repulsion mode, {@link RepulsionMode#EXACT} by default
+     */
+	public void setRepulsionMode(RepulsionMode mode) {
+		repulsionMode = mode;
+	}
+	
+    /**
+     * Returns the method used to calculate the repulsive forces.
+     * @return the repulsion mode
+     */
+	public RepulsionMode getRepulsionMode() {
+		return repulsionMode;
+	}
+	
+    /**
+     * Sets the opening angle used by {@link RepulsionMode#BARNES_HUT}.
+     * @param theta the opening angle, 0.8 by default
+     */
+	public void setTheta(double theta) {
+		this.theta = theta;
+	}
+	
+    /**
+     * Returns the opening angle used by {@link RepulsionMode#BARNES_HUT}.
+     * @return the opening angle
+     */
+	public double getTheta() {
+		return theta;
+	}
+	
+    /**
+     * Sets the number of mesh points along each axis used by {@link RepulsionMode#GRID}.
+     * @param gridSize the mesh size, a power of two, 256 by default
+     */
+	public void setGridSize(int gridSize) {
+		if(gridSize < 2 || Integer.bitCount(gridSize) != 1) {
+			throw new IllegalArgumentException("Grid size must be a power of two: " + gridSize);
+		}
+		this.gridSize = gridSize;
+	}
+	
+    /**
+     * Returns the number of mesh points along each axis used by {@link RepulsionMode#GRID}.
+     * @return the mesh size
+     */
+	public int getGridSize() {
+		return gridSize;
+	}
+	
+    /**
+     * Enables or disables the multilevel mode.
+     * @param multilevel true to lay out coarser versions of the graph first, false by default
+     */
+	public void setMultilevel(boolean multilevel) {
+		this.multilevel = multilevel;
+	}
+	
+    /**
+     * Returns true if the multilevel mode is enabled.
+     * @return true if the multilevel mode is enabled
+     */
+	public boolean isMultilevel() {
+		return multilevel;
+	}
+	
+    /**
+     * Sets the maximum number of rounds used to refine a level in the multilevel mode.
+     * @param refinementRounds the number of rounds, 20 by default
+     */
+	public void setRefinementRounds(int refinementRounds) {
+		this.refinementRounds = refinementRounds;
+	}
+	
+    /**
+     * Returns the maximum number of rounds used to refine a level in the multilevel mode.
+     * @return the number of rounds
+     */
+	public int getRefinementRounds() {
+		return refinementRounds;
+	}
+	
+    /**
+     * Sets the temperature the nodes start with when a level is refined in the multilevel mode.
+     * @param refinementTemp the temperature, 32 by default
+     */
+	public void setRefinementTemp(double refinementTemp) {
+		this.refinementTemp = refinementTemp;
+	}
+	
+    /**
+     * Returns the temperature the nodes start with when a level is refined in the multilevel mode.
+     * @return the temperature
+     */
+	public double getRefinementTemp() {
+		return refinementTemp;
+	}
+	
+    /**
+     * Enables or disables the parallel mode.
+     * @param parallel true to calculate the impulses of every batch in parallel, false by default
+     */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+    /**
+     * Returns true if the parallel mode is enabled.
+     * @return true if the parallel mode is enabled
+     */
+	public boolean isParallel() {
+		return parallel;
+	}
+	
+    /**
+     * Sets the number of nodes whose impulses are calculated from the same
+     * positions in the parallel mode. Larger batches give more parallelism,
+     * smaller batches stay closer to the sequential order of GEM.
+     * @param batchSize the number of nodes in every batch, 1024 by default
+     */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+	
+    /**
+     * Returns the number of nodes in every batch of the parallel mode.
+     * @return the number of nodes in every batch
+     */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+    /**
+     * Sets the pool that runs the parallel mode.
+     * @param pool the pool, the common pool by default
+     */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+    /**
+     * Sets the method used to place the nodes before they are moved.
+     * @param placement the method, RANDOM by default
+     */
+	public void setInitialPlacement(InitialPlacement placement) {
+		this.initialPlacement = placement;
+	}
+	
+    /**
+     * Returns the method used to place the nodes before they are moved.
+     * @return the method
+     */
+	public InitialPlacement getInitialPlacement() {
+		return initialPlacement;
+	}
+	
+    /**
+     * Sets the number of pivots used by the Pivot MDS placement.
+     * More pivots give a more faithful placement, but take longer.
+     * @param pivotCount the number of pivots, 50 by default
+     */
+	public void setPivotCount(int pivotCount) {
+		this.pivotCount = Math.max(3, pivotCount);
+	}
+	
+    /**
+     * Returns the number of pivots used by the Pivot MDS placement.
+     * @return the number of pivots
+     */
+	public int getPivotCount() {
+		return pivotCount;
+	}
+	
+    /**
+     * Enables or disables leaf folding. The nodes with a single neighbor
+     * are left out of the rounds, and placed in a half circle around their
+     * neighbor, facing away from the rest of the graph, once the other
+     * nodes have settled.
+     * @param leafFolding true to fold the leaves, false by default
+     */
+	public void setLeafFolding(boolean leafFolding) {
+		this.leafFolding = leafFolding;
+	}
+	
+    /**
+     * Returns whether the leaves are folded.
+     * @return true if the leaves are folded
+     */
+	public boolean isLeafFolding() {
+		return leafFolding;
+	}
+	
+    /**
+     * Enables or disables folding whole chains of nodes that hang from the
+     * rest of the graph. Only used together with leaf folding.
+     * @param foldChains true to fold the chains, false by default
+     */
+	public void setFoldChains(boolean foldChains) {
+		this.foldChains = foldChains;
+	}
+	
+    /**
+     * Returns whether chains of nodes are folded.
+     * @return true if chains of nodes are folded
+     */
+	public boolean isFoldChains() {
+		return foldChains;
+	}
+	
+    /**
+     * Sets how often the visualization is updated while the algorithm runs.
+     * @param millis the time between two updates in milliseconds, 40 by default
+     */
+	public void setUpdateInterval(long millis) {
+		this.updateInterval = Math.max(0, millis);
+	}
+	
+    /**
+     * Returns how often the visualization is updated while the algorithm runs.
+     * @return the time between two updates in milliseconds
+     */
+	public long getUpdateInterval() {
+		return updateInterval;
+	}
+	
+    /**
+     * Enables or disables the asynchronous mode. The rounds run on a worker
+     * thread and run() returns right away, so the JavaFX application thread
+     * is not blocked. The positions are copied into the visual items on
+     * every JavaFX pulse, at most every update interval. The items are set
+     * to fixed once the rounds are done. In this mode run() may be called
+     * on any thread: it hands itself over to the JavaFX application thread,
+     * where the run is started and finished.
+     * @param asynchronous true to run in the background, false by default
+     */
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+	
+    /**
+     * Returns whether the rounds run in the background.
+     * @return true if the rounds run in the background
+     */
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+	
+    /**
+     * Sets the policy that decides when the rounds stop. The maximum
+     * number of rounds always applies on top of it.
+     * @param policy the policy, ConvergencePolicy.temperature(3) by default
+     */
+	public void setConvergencePolicy(ConvergencePolicy policy) {
+		this.convergencePolicy = policy;
+	}
+	
+    /**
+     * Returns the policy that decides when the rounds stop.
+     * @return the policy
+     */
+	public ConvergencePolicy getConvergencePolicy() {
+		return convergencePolicy;
+	}
+	
+    /**
+     * Enables or disables adaptive scheduling. A node whose temperature and
+     * movement have stayed below the park temperature for 5 rounds is
+     * parked: it is only moved every 8th round, until one of its neighbors
+     * moves by an eighth of the desired edge length or more. Late rounds
+     * then mostly move the part of the graph that has not settled yet.
+     * @param adaptiveScheduling true to park calm nodes, false by default
+     */
+	public void setAdaptiveScheduling(boolean adaptiveScheduling) {
+		this.adaptiveScheduling = adaptiveScheduling;
+	}
+	
+    /**
+     * Returns whether calm nodes are parked.
+     * @return true if calm nodes are parked
+     */
+	public boolean isAdaptiveScheduling() {
+		return adaptiveScheduling;
+	}
+	
+    /**
+     * Sets the temperature below which a node counts as calm, see
+     * {@link #setAdaptiveScheduling(boolean)}. Higher values park more
+     * nodes and save more time, at some cost in quality.
+     * @param parkTemperature the temperature, 4 by default
+     */
+	public void setParkTemperature(double parkTemperature) {
+		this.parkTemperature = Math.max(0, parkTemperature);
+	}
+	
+    /**
+     * Returns the temperature below which a node counts as calm.
+     * @return the temperature
+     */
+	public double getParkTemperature() {
+		return parkTemperature;
+	}
+	
+    /**
+     * Enables or disables the spatial order. Instead of shuffling all the
+     * nodes before every round, the nodes are sorted along a Z-order curve
+     * every 10 rounds and cut into blocks of 64 nodes that are close to each
+     * other. Every round visits the blocks, and the nodes inside them, in
+     * random order. The quadtree of the Barnes-Hut approximation is built
+     * along the curve as well. Nodes that are moved one after another then
+     * look at the same data, which is much friendlier to the CPU caches on
+     * large graphs.
+     * @param spatialOrder true to visit the nodes in blocks, false by default
+     */
+	public void setSpatialOrder(boolean spatialOrder) {
+		this.spatialOrder = spatialOrder;
+	}
+	
+    /**
+     * Returns whether the nodes are visited in blocks of nodes that are close to each other.
+     * @return true if the nodes are visited in blocks
+     */
+	public boolean isSpatialOrder() {
+		return spatialOrder;
+	}
+	
+    /**
+     * Enables or disables single precision. The exact mode then scans a
+     * float copy of the coordinates, which is half the memory, and uses
+     * GemVectorKernel to handle 8 or 16 nodes at a time if it has been added
+     * to the project. The rest of GEM stays in double precision. Has no
+     * effect on the other repulsion modes.
+     * @param singlePrecision true to calculate the repulsive forces in single precision, false by default
+     */
+	public void setSinglePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+	}
+	
+    /**
+     * Returns whether the exact mode calculates the repulsive forces in single precision.
+     * @return true if single precision is used
+     */
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+	
+    /**
+     * Enables or disables the component mode. The connected components of
+     * the graph, like the hierarchies of an ontology with several roots,
+     * are then laid out separately, without any repulsion between them.
+     * The components run in parallel on the pool set by setPool(), each
+     * with its own copy of the convergence policy, and are packed next to
+     * each other after every round.
+     * @param componentLayout true to lay out the components separately, false by default
+     */
+	public void setComponentLayout(boolean componentLayout) {
+		this.componentLayout = componentLayout;
+	}
+	
+    /**
+     * Returns whether the connected components are laid out separately.
+     * @return true if the component mode is enabled
+     */
+	public boolean isComponentLayout() {
+		return componentLayout;
+	}
+	
+    /**
+     * Sets the number of runs of GEM that are made side by side. Every run
+     * has its own seed, and with random placement its own start positions.
+     * The runs take turns on the pool set by setPool(), each with its own
+     * copy of the convergence policy. While they run the first one is
+     * shown, when all of them are done the best one by the quality measure
+     * is kept. Combined with the component mode, every component gets its
+     * own runs. Spare cores thus buy better layouts in the same time.
+     * @param restarts the number of runs, 1 by default
+     */
+	public void setRestarts(int restarts) {
+		this.restarts = Math.max(1, restarts);
+	}
+	
+    /**
+     * Returns the number of runs of GEM that are made side by side.
+     * @return the number of runs
+     */
+	public int getRestarts() {
+		return restarts;
+	}
+	
+    /**
+     * Sets the measure used to pick the best of the runs, see setRestarts().
+     * @param qualityMeasure the measure, CROSSINGS by default
+     */
+	public void setQualityMeasure(QualityMeasure qualityMeasure) {
+		this.qualityMeasure = qualityMeasure;
+	}
+	
+    /**
+     * Returns the measure used to pick the best of the runs.
+     * @return the measure
+     */
+	public QualityMeasure getQualityMeasure() {
+		return qualityMeasure;
+	}
+	
+    /**
+     * Moves the state of the nodes off the heap, into direct memory, or
+     * back onto the heap. The state is the position, temperature, skew and
+     * last impulse of every node, and the neighbors of every node. Off the
+     * heap it is neither counted against the heap nor copied by the garbage
+     * collector. The engine still keeps about 25 bytes per node on the heap:
+     * a copy of the positions for the rounds, the fixed flags, the ids and
+     * the order of the nodes. The neighbors are gathered on the heap before
+     * they are copied, so this lowers the heap used while the layout runs,
+     * not the peak while the engine is built. Takes effect with the next
+     * run, the state that is already there is copied.
+     * @param offHeap true to keep the state off the heap, false by default
+     */
+	public void setOffHeap(boolean offHeap) {
+		memory = new GemMemory(offHeap, offHeap ? memory.getDirectory() : null);
+	}
+	
+    /**
+     * Returns whether the state of the nodes is off the heap.
+     * @return true if the state is off the heap
+     */
+	public boolean isOffHeap() {
+		return memory.isOffHeap();
+	}
+	
+    /**
+     * Keeps the state of the nodes in files in a directory that are mapped
+     * into memory, see setOffHeap(). The operating system only keeps the
+     * parts of the files that are in use in memory. The files are deleted
+     * as soon as they are mapped. Takes effect with the next run, the state
+     * that is already there is copied.
+     * @param directory the directory, null to keep the state in direct memory
+     */
+	public void setStateDirectory(File directory) {
+		memory = new GemMemory(directory != null || memory.isOffHeap(), directory);
+	}
+	
+    /**
+     * Returns the directory the state of the nodes is mapped from.
+     * @return the directory, null if there is none
+     */
+	public File getStateDirectory() {
+		return memory.getDirectory();
+	}
+	
     /**
      * Initializes the algorithm and all the variables that are needed.
      */
@@ -149,59 +679,106 @@ public class GraphEmbedderLayout extends Layout {
 		
 		System.out.println("Initializing algorithm...");
 		
-		// Place all the nodes in random positions and add them to nodeList.
+		// Add all the nodes to the list of items. They are placed in random
+		// positions once the engine exists.
+		List<VisualItem> itemList = new ArrayList<>();
 		Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
 		while(iter.hasNext()) {
 			
 			VisualItem item = iter.next();
 			
-			double newX = (Math.random() * 2048) - 1024;
-			double newY = (Math.random() * 2048) - 1024;
-			
-			item.setX(newX);
-			item.setY(newY);
-			
 			item.setFixed(false);
 			
-			sumPos[0] += newX;
-			sumPos[1] += newY;
-			
-			Vertex v = new Vertex(item);
-			v.coordinates[0] = item.getX();
-			v.coordinates[1] = item.getY();
-			
-			nodeList.add(v);
+			itemList.add(item);
 		}
 		
-		System.out.println("Nodes added to list: " + nodeList.size() + ".");
+		items = itemList.toArray(new VisualItem[itemList.size()]);
+		
+		System.out.println("Nodes added to list: " + items.length + ".");
+		
+		// Map the row of every item to its index, so that the neighbors
+		// can be looked up without scanning all the items.
+		int maxRow = -1;
+		for(VisualItem item : items) {
+			maxRow = Math.max(maxRow, item.getRow());
+		}
+		int[] rowIndex = new int[maxRow + 1];
+		Arrays.fill(rowIndex, -1);
+		for(int i = 0; i < items.length; ++i) {
+			rowIndex[items[i].getRow()] = i;
+		}
 		
-		// Make sure the neighbors are added to every node.
-		for(Vertex v : nodeList) {
+		// Make sure the neighbors are added to every node. The neighbors of
+		// node i are stored in targets, from offsets[i] to offsets[i + 1].
+		int[] offsets = new int[items.length + 1];
+		int[] targets = new int[16];
+		int count = 0;
+		for(int i = 0; i < items.length; ++i) {
 			
-			Iterator<? extends Edge> it = ((Node) v.item).edges();
+			Iterator<? extends Edge> it = ((Node) items[i]).edges();
 			while(it.hasNext()) {
 				
 				Edge e = it.next();
 				VisualItem u = (VisualItem) e.getSourceNode();
 				
 				// Make sure u and v are not the same node.
-				if(u == v.item) {
+				if(u == items[i]) {
 					u = (VisualItem) e.getTargetNode();
 				}
 				
-				for(Vertex v2 : nodeList) {
-					if(u == v2.item) {
-						v.neighbors.add(v2);
+				int row = u.getRow();
+				int j = row < rowIndex.length ? rowIndex[row] : -1;
+				
+				// Only add the neighbor if it is one of the items.
+				if(j != -1 && items[j] == u) {
+					if(count == targets.length) {
+						targets = Arrays.copyOf(targets, count * 2);
 					}
+					targets[count++] = j;
 				}
 			}
+			
+			offsets[i + 1] = count;
 		}
 		
-		maxRounds = nodeList.size() * 4;
-		System.out.println("maxRounds set to: " + maxRounds + ".");
+		// Place all the nodes in random positions, with the random number generator of the engine.
+		engine = new GemEngine(offsets, Arrays.copyOf(targets, count), memory);
+		engine.randomize();
+		for(int i = 0; i < items.length; ++i) {
+			items[i].setX(engine.x.get(i));
+			items[i].setY(engine.y.get(i));
+		}
 		
-		rotationSensitivity = (double) 1 / (2 * nodeList.size());
-		System.out.println("rotationSensitivity set to: " + rotationSensitivity + ".");
+		if(initialPlacement == InitialPlacement.PARENT) {
+			
+			// The parent of every node: the first node of an incoming edge that is one of the items.
+			int[] parent = new int[items.length];
+			Arrays.fill(parent, -1);
+			for(int i = 0; i < items.length; ++i) {
+				Iterator<? extends Node> it = ((Node) items[i]).inNeighbors();
+				while(it.hasNext() && parent[i] == -1) {
+					VisualItem u = (VisualItem) it.next();
+					int row = u.getRow();
+					int j = row < rowIndex.length ? rowIndex[row] : -1;
+					if(j != -1 && j != i && items[j] == u) {
+						parent[i] = j;
+					}
+				}
+			}
+			
+			GemPlacement.aroundParents(engine, parent, new boolean[items.length], Double.NaN);
+			log.debug("Nodes placed around their parents.");
+		} else if(initialPlacement == InitialPlacement.INSERTION) {
+			configure(engine);
+			engine.insert(engine.desiredEdgeLength / 4);
+			log.debug("Nodes inserted.");
+		} else if(initialPlacement == InitialPlacement.PIVOT_MDS) {
+			GemPlacement.pivotMds(engine, pivotCount, pool);
+			log.debug("Nodes placed with Pivot MDS.");
+		}
+		
+		maxRounds = items.length * 4;
+		System.out.println("maxRounds set to: " + maxRounds + ".");
 		
 		initialized = true;
 		
@@ -213,218 +790,434 @@ public class GraphEmbedderLayout extends Layout {
 	 */
 	public void run(double frac) {
 		
+		// The runner, rerun and the stepper of a run in the background are
+		// only used on the JavaFX application thread, so a call from another
+		// thread that may touch them is handed over.
+		if((asynchronous || runner.isRunning()) && !Platform.isFxApplicationThread()) {
+			Platform.runLater(() -> run(frac));
+			return;
+		}
+		
+		// Still running in the background: run again afterwards.
+		if(runner.isRunning()) {
+			rerun = true;
+			return;
+		}
+		
+		// Continue the run started by step() or runFor(), if there is one.
+		if(stepper == null) {
+			begin();
+		}
+		
+		background = asynchronous;
+		if(background) {
+			runner.start(items, this::layOut, this::finish, this::abort);
+		} else {
+			layOut();
+			finish();
+		}
+	}
+	
+    /**
+     * Runs at most the given number of rounds and returns. Starts a new run
+     * if none is in progress, otherwise continues the one that is. Between
+     * two calls the layout is paused and the visual items show the positions
+     * so far. The rounds run on the calling thread, also in the asynchronous
+     * mode. Does nothing while a run started by run() is in the background.
+     * @param rounds the maximum number of rounds to run
+     * @return true if the run is not done yet
+     */
+	public boolean step(int rounds) {
+		
+		if(runner.isRunning()) {
+			return true;
+		}
+		if(stepper == null) {
+			begin();
+		}
+		
+		background = false;
+		for(int r = 0; r < rounds && !stepper.isDone(); ++r) {
+			advance();
+		}
+		
+		return pause();
+	}
+	
+    /**
+     * Runs rounds until the time budget is used up and returns, like
+     * {@link #step(int)}. The round that is running when the budget runs out
+     * is finished, and at least one round is run. Calling this once per
+     * frame with a budget below the frame time keeps the display responsive.
+     * @param budget the time budget
+     * @return true if the run is not done yet
+     */
+	public boolean runFor(Duration budget) {
+		
+		if(runner.isRunning()) {
+			return true;
+		}
+		if(stepper == null) {
+			begin();
+		}
+		
+		background = false;
+		long deadline = System.nanoTime() + budget.toNanos();
+		do {
+			if(stepper.isDone()) {
+				break;
+			}
+			advance();
+		} while(System.nanoTime() < deadline);
+		
+		return pause();
+	}
+	
+    /**
+     * Ends the run in progress with the positions it has reached so far.
+     * In the multilevel mode the levels that have not been reached yet are
+     * placed around their coarser levels. A run in the background ends
+     * after the round that is running.
+     */
+	public void stop() {
+		if(runner.isRunning()) {
+			stopRequested = true;
+		} else if(stepper != null) {
+			stepper.skip();
+			settle();
+			finish();
+		}
+	}
+	
+    /**
+     * Starts a new run: initializes the algorithm if necessary, folds the
+     * leaves and plans the rounds.
+     */
+	private void begin() {
+		
 		System.out.println("-------------------------------------");
 		System.out.println("Algorithm started.");
 		
-		long startTime = System.nanoTime();
+		startTime = System.nanoTime();
 		
+		// The engine is built on the first run only. The later runs continue
+		// from the state the nodes were left in by the run before.
 		if(!initialized) {
 			init();
-		} // TODO: this if-statement might be unnecessary at the moment.
+		}
 		
-		do {
-			
-			System.out.println("-------------------------------------");
-			System.out.println("ROUND " + (++nrRounds));
-			
-			// Reset the global temperature at the start of every round.
-			globalTemp = 0;
-			
-			// Shuffle the list before every iteration.
-			Collections.shuffle(nodeList);
-			for(Vertex v : nodeList) {
-				
-				// Calculate the impulse. 
-				double[] imp = calculateImpulse(v);
-				
-				// Use the impulse to calculate the temperature and move the node.
-				calculateTemperature(v, imp);
-			}
-			
-			// Calculate the average temperature.
-			globalTemp = globalTemp / nodeList.size();
-			
-			System.out.println("Global temperature: " + globalTemp);
-			System.out.println("Time elapsed: " + (System.nanoTime() - startTime) / 1000000000 + "s");
-			
-			// Update the visualization, or not.
-			if(nrRounds % updateFrequency == 0 || globalTemp <= desiredTemp) {
-				System.out.println("Updating visualization...");
-				for(Vertex v : nodeList) {
-					v.item.setX(v.coordinates[0]);
-					v.item.setY(v.coordinates[1]);
+		// Move the state if setOffHeap() or setStateDirectory() were called since.
+		if(engine.memory != memory) {
+			engine = engine.moveTo(memory);
+		}
+		
+		configure(engine);
+		
+		// Leave the folded leaves out of the rounds.
+		anchor = leafFolding ? GemPlacement.foldLeaves(engine, foldChains) : null;
+		core = engine;
+		if(anchor != null) {
+			int[] keep = new int[engine.n];
+			int count = 0;
+			for(int i = 0; i < engine.n; ++i) {
+				if(anchor[i] == -1) {
+					keep[count++] = i;
 				}
 			}
-			
-		} while(globalTemp >= desiredTemp && nrRounds < maxRounds);
+			core = engine.subgraph(Arrays.copyOf(keep, count));
+			System.out.println("Folded nodes: " + (engine.n - core.n) + ".");
+		}
 		
-		// When the algorithm has finished, set fixed to true to enable
-		// the touch-functionality in prefux.controls.GemControl.
-		for(Vertex v : nodeList) {
-			v.item.setFixed(true);
+		stepper = new GemStepper(convergencePolicy.copy());
+		int[][] components = componentLayout ? GemComponents.find(core) : null;
+		if(components != null && components.length > 1) {
+			planComponents(core, components);
+		} else {
+			planRounds(core, stepper, multilevel);
 		}
 		
-		System.out.println("Algorithm finished.");
+		lastUpdate = System.nanoTime();
+		stopRequested = false;
 	}
 	
     /**
-     * Calculates the scaling factor.
-     * @param v the vertex for which we want the scaling factor
-     * @return the scaling factor
+     * Runs all the rounds that are left and places the folded leaves.
+     * Runs on the worker thread in the asynchronous mode.
      */
-	private double calculateScalingFactor(Vertex v) {
-		return 1 + v.neighbors.size() / 2;
+	private void layOut() {
+		while(!stopRequested && !stepper.isDone()) {
+			advance();
+		}
+		stepper.skip();
+		settle();
 	}
 	
     /**
-     * Calculates the barycenter, or the center of mass.
-     * @return the coordinates for the barycenter
+     * Runs one round of GEM.
      */
-	private double[] calculateBarycenter() {
-		double[] center = new double[2];
-		center[0] = sumPos[0] / nodeList.size();
-		center[1] = sumPos[1] / nodeList.size();
-		return center;
+	private void advance() {
+		
+		System.out.println("-------------------------------------");
+		System.out.println("ROUND " + (++nrRounds));
+		
+		// Move every node once and calculate the average temperature.
+		GemEngine e = stepper.getEngine();
+		globalTemp = stepper.round();
+		
+		System.out.println("Global temperature: " + globalTemp);
+		System.out.println("Time elapsed: " + (System.nanoTime() - startTime) / 1000000000 + "s");
+		
+		// Update the visualization, or not. The coarser levels have no visual items.
+		long now = System.nanoTime();
+		if(e == core && (now - lastUpdate >= updateInterval * 1000000 || globalTemp <= desiredTemp)) {
+			updateVisualization(e);
+			lastUpdate = now;
+		}
 	}
 	
     /**
-     * Calculates the impulse, which is the direction the
-     * node wants to move towards.
-     * @param v the vertex for which we want the impulse
-     * @return an impulse vector
+     * Ends the run if all the rounds are done, otherwise shows the positions so far.
+     * @return true if the run is not done yet
      */
-	private double[] calculateImpulse(Vertex v) {
-		
-		// Attraction to the barycenter.
-		double[] impulse = new double[2];
-		impulse = calculateBarycenter();
+	private boolean pause() {
+		if(stepper.isDone()) {
+			settle();
+			finish();
+			return false;
+		}
+		if(stepper.getEngine() == core) {
+			updateVisualization(core);
+		}
+		return true;
+	}
+	
+    /**
+     * Places the folded leaves around the nodes they hang from and shows
+     * the final positions.
+     */
+	private void settle() {
+		if(anchor != null) {
+			engine.copyFrom(core);
+			GemPlacement.unfoldLeaves(engine, anchor);
+			updateVisualization(engine);
+		} else {
+			updateVisualization(core);
+		}
+	}
+	
+    /**
+     * Ends a run once the rounds are done.
+     */
+	private void finish() {
 		
-		impulse[0] = impulse[0] - v.coordinates[0];
-		impulse[1] = impulse[1] - v.coordinates[1];
+		// When the algorithm has finished, set fixed to true to enable
+		// the touch-functionality in prefux.controls.GemControl.
+		for(VisualItem item : items) {
+			item.setFixed(true);
+		}
 		
-		// Apply scaling factor.
-		double scalingFactor = calculateScalingFactor(v);
-		impulse[0] = impulse[0] * gravitationalConstant * scalingFactor;
-		impulse[1] = impulse[1] * gravitationalConstant * scalingFactor;
+		stepper = null;
+		System.out.println("Algorithm finished.");
 		
-		// Random disturbance vector; default range: [-32,32] * [-32,32].
-		impulse[0] = impulse[0] + Math.random() * 40 - 20;
-		impulse[1] = impulse[1] + Math.random() * 40 - 20;
+		// The runner counts as running until this returns, so run again right after.
+		if(rerun) {
+			rerun = false;
+			Platform.runLater(() -> run(0));
+		}
+	}
+	
+    /**
+     * Ends a run whose rounds have thrown on the worker thread. The visual
+     * items keep the positions published last, and the run and a pending
+     * rerun are dropped. The exception has been logged by the runner.
+     */
+	private void abort() {
+		stepper = null;
+		rerun = false;
+	}
+	
+    /**
+     * Copies the settings of the layout to an engine.
+     * @param e the engine
+     */
+	private void configure(GemEngine e) {
+		e.repulsionMode = repulsionMode;
+		e.theta = theta;
+		e.gridSize = gridSize;
+		e.euclideanDistance = euclideanDistance;
+		e.parallel = parallel;
+		e.batchSize = batchSize;
+		e.pool = pool;
+		e.adaptiveScheduling = adaptiveScheduling;
+		e.parkTemperature = parkTemperature;
+		e.spatialOrder = spatialOrder;
+		e.singlePrecision = singlePrecision;
+	}
+	
+    /**
+     * Plans the rounds of GEM on a graph: one run, on a hierarchy of
+     * coarser and coarser versions of the graph or not, or several runs.
+     * @param e the engine holding the graph
+     * @param plan the stepper to add the rounds to
+     * @param levels true to use the multilevel mode
+     */
+	private void planRounds(GemEngine e, GemStepper plan, boolean levels) {
+		if(restarts > 1) {
+			planRestarts(e, plan, levels);
+		} else if(levels) {
+			planMultilevel(e, plan);
+		} else {
+			plan.add(e, Math.min(maxRounds, e.n * 4), null);
+		}
+	}
+	
+    /**
+     * Plans several runs of GEM on copies of a graph, each with its own
+     * seed. The first copy is shown until all the runs are done, then the
+     * best one is kept.
+     * @param e the engine holding the graph
+     * @param plan the stepper to add the rounds to
+     * @param levels true to use the multilevel mode
+     */
+	private void planRestarts(GemEngine e, GemStepper plan, boolean levels) {
 		
-		double desSquared = desiredEdgeLength * desiredEdgeLength;
+		int[] all = new int[e.n];
+		for(int i = 0; i < all.length; ++i) {
+			all[i] = i;
+		}
 		
-		// For every node in the graph: calculate the repulsive forces.
-		// NOTE: this is the most time-critical part of the algorithm.
-		for(Vertex u : nodeList) {
-			
-			// If u and v are the same item: skip the iteration.
-			if(u.item == v.item) {
-				continue;
+		SplittableRandom seeds = e.random().split();
+		GemEngine[] copies = new GemEngine[restarts];
+		List<GemStepper> plans = new ArrayList<>();
+		for(int r = 0; r < copies.length; ++r) {
+			copies[r] = e.subgraph(all);
+			copies[r].seed(seeds.nextLong());
+			if(r > 0 && initialPlacement == InitialPlacement.RANDOM) {
+				copies[r].randomize();
 			}
-			
-			double[] delta = new double[2];
-			delta[0] = v.coordinates[0] - u.coordinates[0];
-			delta[1] = v.coordinates[1] - u.coordinates[1];
-			
-			double distance;
-			
-			if(euclideanDistance) {
-				distance = Math.sqrt(delta[0] * delta[0] + delta[1] * delta[1]);
+			GemStepper copyPlan = new GemStepper(convergencePolicy.copy());
+			if(levels) {
+				planMultilevel(copies[r], copyPlan);
 			} else {
-				distance = Math.abs(delta[0]) + Math.abs(delta[1]);
-			}
-			
-			if(distance != 0) {
-				double scale = desSquared / (distance * distance);
-				impulse[0] = impulse[0] + delta[0] * scale;
-				impulse[1] = impulse[1] + delta[1] * scale;
+				copyPlan.add(copies[r], Math.min(maxRounds, e.n * 4), null);
 			}
+			plans.add(copyPlan);
 		}
 		
-		double desSquaredScaled = desSquared * scalingFactor;
+		plan.addParts(e, plans, pool, () -> keepBest(e, copies, plans));
+	}
+	
+    /**
+     * Copies the best of the runs of planRestarts() into the engine they
+     * were copied from once all of them are done, the first one before.
+     * @param e the engine the runs were copied from
+     * @param copies the engines of the runs
+     * @param plans the steppers of the runs
+     */
+	private void keepBest(GemEngine e, GemEngine[] copies, List<GemStepper> plans) {
 		
-		// For every node connected to v: calculate the attractive forces.
-		for(Vertex u : v.neighbors) {
-			
-			double[] delta = new double[2];
-			delta[0] = v.coordinates[0] - u.coordinates[0];
-			delta[1] = v.coordinates[1] - u.coordinates[1];
-			
-			double distance;
-			
-			if(euclideanDistance) {
-				distance = Math.sqrt(delta[0] * delta[0] + delta[1] * delta[1]);
-			} else {
-				distance = Math.abs(delta[0]) + Math.abs(delta[1]);
+		for(GemStepper copyPlan : plans) {
+			if(!copyPlan.isDone()) {
+				e.copyFrom(copies[0]);
+				return;
 			}
-			
-			double scale = (distance * distance) / desSquaredScaled;
-			
-			impulse[0] = impulse[0] - delta[0] * scale;
-			impulse[1] = impulse[1] - delta[1] * scale;
 		}
 		
-		return impulse;
+		int best = 0;
+		double bestScore = Double.MAX_VALUE;
+		for(int r = 0; r < copies.length; ++r) {
+			double score = GemQuality.score(copies[r], qualityMeasure);
+			System.out.println("Run " + (r + 1) + ": " + qualityMeasure + " " + score + ".");
+			if(score < bestScore) {
+				bestScore = score;
+				best = r;
+			}
+		}
+		System.out.println("Keeping run " + (best + 1) + ".");
+		e.copyFrom(copies[best]);
 	}
 	
     /**
-     * Calculates the temperature, which is the distance the
-     * node is going to move. The node is then moved in the 
-     * @param v the vertex that is going to be moved
-     * @param impulse the vector that is returned from {@link #calculateImpulse(Vertex)}
+     * Plans the rounds of GEM on every connected component of a graph on
+     * its own. The components are packed after every round.
+     * @param e the engine holding the graph
+     * @param components the nodes of every component
      */
-	private void calculateTemperature(Vertex v, double[] impulse) {
+	private void planComponents(GemEngine e, int[][] components) {
 		
-		// If the current impulse is not 0.
-		if(impulse[0] != 0 || impulse[1] != 0) {
-			
-			// Scale the impulse with the current temperature.
-			double length = Math.sqrt(impulse[0] * impulse[0] + impulse[1] * impulse[1]);
-			impulse[0] = v.temp * impulse[0] / length;
-			impulse[1] = v.temp * impulse[1] / length;
-			
-			// Update v's coordinates.
-			v.coordinates[0] += impulse[0];
-			v.coordinates[1] += impulse[1];
-			
-			// Update the sum of all node-coordinates (used for calculating the barycenter).
-			sumPos[0] += impulse[0];
-			sumPos[1] += impulse[1];
+		System.out.println("Number of components: " + components.length + ".");
+		
+		GemEngine[] parts = new GemEngine[components.length];
+		List<GemStepper> plans = new ArrayList<>();
+		for(int c = 0; c < parts.length; ++c) {
+			parts[c] = e.subgraph(components[c]);
+			GemStepper plan = new GemStepper(convergencePolicy.copy());
+			planRounds(parts[c], plan, multilevel);
+			plans.add(plan);
 		}
 		
-		double[] oldImpulse = v.impulse;
+		stepper.addParts(e, plans, pool, () -> GemComponents.pack(e, parts, e.desiredEdgeLength));
+	}
+	
+    /**
+     * Plans the rounds of GEM on a hierarchy of coarser and coarser versions
+     * of the graph. The coarsest graph is laid out from random positions.
+     * Every finer level is then placed around the positions of the level
+     * above it and refined with a few rounds at a lower temperature.
+     * @param e the engine holding the graph
+     * @param plan the stepper to add the rounds to
+     */
+	private void planMultilevel(GemEngine e, GemStepper plan) {
 		
-		// If the last impulse was not 0.
-		if(oldImpulse[0] != 0 || oldImpulse[1] != 0) {
-			
-			// Calculate the angle between the last impulse and the current impulse.
-			double uLen = Math.sqrt(impulse[0] * impulse[0] + impulse[1] * impulse[1]);
-			double vLen = Math.sqrt(oldImpulse[0] * oldImpulse[0] + oldImpulse[1] * oldImpulse[1]);
-			double dot = impulse[0] * oldImpulse[0] + impulse[1] * oldImpulse[1];
-			double cosAngle = dot / (uLen * vLen);
-			double angle = Math.acos(cosAngle);
-			
-			// Check for rotation.
-			if(Math.sin(angle) >= Math.sin((Math.PI / 2) + (rotationOpeningAngle / 2))) {
-				v.skew = v.skew + rotationSensitivity * Math.signum(Math.sin(angle));
-			}
-			
-			// Check for oscillation or move in the right direction.
-			if(Math.abs(Math.cos(angle)) >= Math.cos(oscillationOpeningAngle / 2)) {
-				if(Math.cos(angle) > 0) { // Move in the right direction detected: increase temperature.
-					v.temp = v.temp * oscillationSensitivity;
-				} else { // Oscillation detected: decrease temperature.
-					v.temp = v.temp / oscillationSensitivity;
-				}
-			}
-			
-			v.temp = v.temp * (1 - Math.abs(v.skew));
-			v.temp = Math.min(v.temp, maxTemp);
+		GemMultilevel hierarchy = new GemMultilevel(GemMemory.toArray(e.offsets), GemMemory.toArray(e.targets), e.random());
+		System.out.println("Number of levels: " + hierarchy.getLevelCount() + ".");
+		
+		// Create the engines of all the coarser levels.
+		GemEngine[] levels = new GemEngine[hierarchy.getLevelCount()];
+		levels[0] = e;
+		for(int l = 1; l < levels.length; ++l) {
+			levels[l] = new GemEngine(hierarchy.getOffsets(l), hierarchy.getTargets(l), e.memory);
+			levels[l].copySettings(e);
+			levels[l].seed(e.random().nextLong());
+			System.out.println("Level " + l + ": " + levels[l].n + " nodes.");
 		}
 		
-		v.impulse = impulse;
+		// Lay out the coarsest level from random positions.
+		GemEngine coarsest = levels[levels.length - 1];
+		if(coarsest != e) {
+			coarsest.randomize();
+		}
+		plan.add(coarsest, coarsest.n * 4, null);
 		
-		// Add the node's temperature to the global temperature.
-		globalTemp += v.temp;
+		// Place every finer level around its parents and refine it.
+		for(int l = levels.length - 2; l >= 0; --l) {
+			GemEngine fine = levels[l];
+			GemEngine coarse = levels[l + 1];
+			int[] parent = hierarchy.getParent(l);
+			int level = l;
+			plan.add(fine, refinementRounds, () -> {
+				fine.interpolate(coarse, parent, e.desiredEdgeLength / 2, refinementTemp);
+				System.out.println("Refining level " + level + ".");
+			});
+		}
+	}
+	
+    /**
+     * Copies the coordinates of the nodes to their visual items. In the
+     * asynchronous mode they are published instead, and copied on the
+     * next JavaFX pulse.
+     * @param e the engine holding the nodes
+     */
+	private void updateVisualization(GemEngine e) {
+		System.out.println("Updating visualization...");
+		if(background) {
+			runner.publish(e);
+			return;
+		}
+		for(int i = 0; i < e.n; ++i) {
+			VisualItem item = items[e.ids[i]];
+			item.setX(e.x.get(i));
+			item.setY(e.y.get(i));
+		}
 	}
 }
@@ -30,15 +30,21 @@
  */
 package prefux.action.layout.graph;
 
+import java.io.File;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-
+import javafx.application.Platform;
 import prefux.action.layout.Layout;
 import prefux.data.Edge;
 import prefux.data.Graph;
@@ -48,11 +54,48 @@ import prefux.visual.VisualItem;
 
 public class GraphEmbedderLayout2 extends Layout {
 	
-	// List containing all the nodes.
-	private List<Vertex> nodeList = new ArrayList<>();
+	// The visual items of the visible nodes. Item i belongs to node i of visibleGraph.
+	private VisualItem[] items = new VisualItem[0];
+	
+	// The visible nodes and the edges between them, created in run().
+	private GemEngine visibleGraph;
+	
+	// The parent of every node of visibleGraph: the first node of an
+	// incoming edge that is visible, -1 if there is none.
+	private int[] parent = new int[0];
+	
+	// The subgraph that is laid out by run(): all the visible nodes, or
+	// only the active set in the incremental mode.
+	private GemEngine activeGraph;
+	
+	// The slot holding the state of every item that has a state. An item
+	// gets a slot the first time it is visible and loses it again when it
+	// is hidden at the start of a run, so only the explored part of the
+	// graph takes up memory.
+	private final HashMap<VisualItem, Integer> slots = new HashMap<>();
+	
+	// The state of the items, one entry per slot. The temperature of a
+	// node that has never been laid out is NaN. On the heap by default,
+	// see setOffHeap() and setStateFile().
+	private GemSlotStore store = new GemSlotStore(false, null);
+	
+	// The item and the fixed flag of every slot, null and false for
+	// released slots. The flags are kept here so that run() does not
+	// have to ask the items.
+	private VisualItem[] slotItem = new VisualItem[0];
+	private boolean[] slotFixed = new boolean[0];
 	
-	// List containing all the nodes that are visible.
-	private List<Vertex> nodeListVisible = new ArrayList<>();
+	// The number of slots handed out so far, including released ones.
+	private int slotCount = 0;
+	
+	// Released slots that can be handed out again.
+	private int[] freeSlots = new int[0];
+	private int freeCount = 0;
+	
+	// If set to true: after the first run, the visible nodes are only
+	// updated through itemShown() and itemHidden(), instead of scanning
+	// all the items at the start of every run.
+	private boolean visibilityTracking = false;
 	
 	// Indicates if the algorithm has been initialized.
 	private boolean initialized = false;
@@ -63,12 +106,48 @@ public class GraphEmbedderLayout2 extends Layout {
 	// Maximum number of rounds allowed.
 	private int maxRounds;
 	
-	// How often we want the visualization to update.
-	// If set to 1: visualization will be updated after every round.
-	// The visualization will always be updated when algorithm finishes,
-	// no matter what this constant is set to.
-	// WARNING: do not set this to zero!
-	private final int updateFrequency = 9999;
+	// How often we want the visualization to update, in milliseconds.
+	// The visualization is updated after the first round that ends at
+	// least this long after the last update, and always when the
+	// algorithm finishes.
+	private long updateInterval = 40;
+	
+	// The time of the last update of the visualization, in nanoseconds.
+	private long lastUpdate;
+	
+	// If set to true: the rounds run on a worker thread, and the positions
+	// are copied into the visual items on every JavaFX pulse. See
+	// GemBackgroundRunner.
+	private boolean asynchronous = false;
+	
+	// The value of asynchronous for the run in progress.
+	private boolean background = false;
+	
+	// Runs the rounds in the asynchronous mode.
+	private final GemBackgroundRunner runner = new GemBackgroundRunner(log);
+	
+	// Set when run() is called while the rounds are running in the
+	// background: the algorithm runs again once they are done. Only used
+	// on the JavaFX application thread, see run().
+	private boolean rerun = false;
+	
+	// Set by stop() to end the rounds running in the background.
+	private volatile boolean stopRequested = false;
+	
+	// The rounds of the run in progress, null if there is none. While the
+	// rounds run in the background, only the worker uses it, and finish()
+	// and abort() clear it on the JavaFX application thread.
+	private GemStepper stepper;
+	
+	// The slot of every item of the run in progress.
+	private int[] itemSlot;
+	
+	// The node every folded node of the run in progress hangs from,
+	// null if no node is folded.
+	private int[] anchor;
+	
+	// The time the run in progress was started, in nanoseconds.
+	private long startTime;
 	
 	// The method used to calculate the distance between nodes.
 	// If set to true: Euclidean distance is used.
@@ -78,85 +157,1163 @@ public class GraphEmbedderLayout2 extends Layout {
 	// The global temperature.
 	private double globalTemp = 9999;
 	
-	// The sum of the coordinates for all the nodes. This is
-	// used to calculate the location of the barycenter.
-	private double[] sumPos = new double[2];
-	
-	// The maximal temperature a node is allowed to have.
-	private final double maxTemp = 256;
-	
 	// The desired global temperature.
 	private final double desiredTemp = 3;
 	
-	// The desired length of the edges.
-	private final double desiredEdgeLength = 128;
+	// Decides when the rounds stop, before the maximum number of rounds is reached.
+	private ConvergencePolicy convergencePolicy = ConvergencePolicy.temperature(desiredTemp);
+	
+	// The method used to calculate the repulsive forces.
+	private RepulsionMode repulsionMode = RepulsionMode.EXACT;
+	
+	// The opening angle used by the Barnes-Hut approximation. A group of
+	// nodes is treated as one mass if the width of its cell divided by the
+	// distance to its center of mass is smaller than theta.
+	// Lower values are more accurate, but slower.
+	private double theta = 0.8;
+	
+	// The number of mesh points along each axis used by the grid approximation.
+	// Must be a power of two. Forces between nodes closer than one mesh cell
+	// are smoothed out, so the mesh should be fine enough for the graph.
+	private int gridSize = 256;
+	
+	// If set to true: the graph is coarsened repeatedly, the coarsest graph
+	// is laid out first and every finer level starts from the positions of
+	// the level above it. See planMultilevel().
+	private boolean multilevel = false;
+	
+	// The maximum number of rounds used to refine every level except the coarsest one.
+	private int refinementRounds = 20;
+	
+	// The temperature the nodes start with when a level is refined.
+	private double refinementTemp = 32;
+	
+	// If set to true: the impulses are calculated in parallel. The shuffled
+	// nodes are split into batches of batchSize nodes; the impulses of a batch
+	// are all calculated from the same positions, then the nodes of the batch
+	// are moved one after another.
+	private boolean parallel = false;
+	
+	// The number of nodes in every batch of the parallel mode.
+	private int batchSize = 1024;
+	
+	// The pool that runs the parallel mode.
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	
+	// The method used to place the nodes before they are moved.
+	private InitialPlacement initialPlacement = InitialPlacement.RANDOM;
+	
+	// The number of pivots used by the Pivot MDS placement.
+	private int pivotCount = 50;
+	
+	// If set to true: the new nodes with a single neighbor are left out of
+	// the rounds and placed around their neighbor afterwards.
+	private boolean leafFolding = false;
+	
+	// If set to true: chains of new nodes hanging from the rest of the graph
+	// are folded as well, not just their last node.
+	private boolean foldChains = false;
+	
+	// If set to true: nodes that have been calm for a few rounds are
+	// parked and only moved now and then, until a neighbor moves a lot.
+	private boolean adaptiveScheduling = false;
+	
+	// A node is calm if its temperature and the distance it moves in a
+	// round are both below this.
+	private double parkTemperature = 4;
+	
+	// If set to true: the nodes are visited in blocks of nodes that are close
+	// to each other instead of in a completely random order.
+	private boolean spatialOrder = false;
+	
+	// If set to true: the exact mode calculates the repulsive forces in single precision.
+	private boolean singlePrecision = false;
+	
+	// If set to true: every connected component is laid out on its own,
+	// in parallel on the pool, and the components are packed afterwards.
+	private boolean componentLayout = false;
+	
+	// The number of runs of GEM that are made side by side, each from its
+	// own seed, and the measure used to keep the best one.
+	private int restarts = 1;
+	private QualityMeasure qualityMeasure = QualityMeasure.CROSSINGS;
+	
+	// If set to true: when nodes are expanded, only the new nodes and the
+	// fixed nodes at most boundaryHops edges away from them take part in
+	// the layout. The rest of the visible graph is left out completely.
+	// The fixed nodes closer than boundaryHops move too, see thawBoundary().
+	private boolean incremental = false;
+	
+	// The number of hops around the new nodes included in the incremental mode.
+	private int boundaryHops = 2;
+	
+	// If set to true: the nodes that are fixed by earlier runs are put into a
+	// quadtree once per run, which gives their repulsion with the opening
+	// angle theta. Only the nodes that move repel each other as set by
+	// repulsionMode.
+	private boolean frozenFarField = false;
+	
+	// If set to true: when nodes are expanded, every new node that has fixed
+	// neighbors is placed close to them and starts at a temperature that
+	// matches the space around them, instead of at a random position
+	// with the maximal temperature. See warmStart().
+	private boolean warmStart = false;
+	
+	// The highest temperature allowed is multiplied with this factor after
+	// every round. 1 turns the cooling schedule off.
+	private double coolingFactor = 1;
+
+	protected transient VisualItem referrer;
+	protected String m_nodeGroup;
+	protected String m_edgeGroup;
+	private static final Logger log = LogManager.getLogger(GraphEmbedderLayout.class);
+	
+	/**
+	 * Create a new GraphEmbedderLayout.
+	 * 
+	 * @param graph the data group to layout. Must resolve to a Graph instance.
+	 */
+	public GraphEmbedderLayout2(String graph) {
+		super(graph);
+		m_nodeGroup = PrefuseLib.getGroupName(graph, Graph.NODES);
+		m_edgeGroup = PrefuseLib.getGroupName(graph, Graph.EDGES);
+	}
+	
+    /**
+     * Sets the method used to calculate the repulsive forces.
+     * {@link RepulsionMode#GRID} always uses the Euclidean distance, which
+     * is the distance this layout uses for the other modes as well.
+     * @param mode the repulsion mode, {@link RepulsionMode#EXACT} by default
+     */
+	public void setRepulsionMode(RepulsionMode mode) {
+		repulsionMode = mode;
+	}
+	
+    /**
+     * Returns the method used to calculate the repulsive forces.
+     * @return the repulsion mode
+     */
+	public RepulsionMode getRepulsionMode() {
+		return repulsionMode;
+	}
+	
+    /**
+     * Sets the opening angle used by {@link RepulsionMode#BARNES_HUT}.
+     * @param theta the opening angle, 0.8 by default
+     */
+	public void setTheta(double theta) {
+		this.theta = theta;
+	}
+	
+    /**
+     * Returns the opening angle used by {@link RepulsionMode#BARNES_HUT}.
+     * @return the opening angle
+     */
+	public double getTheta() {
+		return theta;
+	}
+	
+    /**
+     * Sets the number of mesh points along each axis used by {@link RepulsionMode#GRID}.
+     * @param gridSize the mesh size, a power of two, 256 by default
+     */
+	public void setGridSize(int gridSize) {
+		if(gridSize < 2 || Integer.bitCount(gridSize) != 1) {
+			throw new IllegalArgumentException("Grid size must be a power of two: " + gridSize);
+		}
+		this.gridSize = gridSize;
+	}
+	
+    /**
+     * Returns the number of mesh points along each axis used by {@link RepulsionMode#GRID}.
+     * @return the mesh size
+     */
+	public int getGridSize() {
+		return gridSize;
+	}
+	
+    /**
+     * Enables or disables the multilevel mode.
+     * @param multilevel true to lay out coarser versions of the graph first, false by default
+     */
+	public void setMultilevel(boolean multilevel) {
+		this.multilevel = multilevel;
+	}
+	
+    /**
+     * Returns true if the multilevel mode is enabled.
+     * @return true if the multilevel mode is enabled
+     */
+	public boolean isMultilevel() {
+		return multilevel;
+	}
+	
+    /**
+     * Sets the maximum number of rounds used to refine a level in the multilevel mode.
+     * @param refinementRounds the number of rounds, 20 by default
+     */
+	public void setRefinementRounds(int refinementRounds) {
+		this.refinementRounds = refinementRounds;
+	}
+	
+    /**
+     * Returns the maximum number of rounds used to refine a level in the multilevel mode.
+     * @return the number of rounds
+     */
+	public int getRefinementRounds() {
+		return refinementRounds;
+	}
+	
+    /**
+     * Sets the temperature the nodes start with when a level is refined in the multilevel mode.
+     * @param refinementTemp the temperature, 32 by default
+     */
+	public void setRefinementTemp(double refinementTemp) {
+		this.refinementTemp = refinementTemp;
+	}
+	
+    /**
+     * Returns the temperature the nodes start with when a level is refined in the multilevel mode.
+     * @return the temperature
+     */
+	public double getRefinementTemp() {
+		return refinementTemp;
+	}
+	
+    /**
+     * Enables or disables the parallel mode.
+     * @param parallel true to calculate the impulses of every batch in parallel, false by default
+     */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+    /**
+     * Returns true if the parallel mode is enabled.
+     * @return true if the parallel mode is enabled
+     */
+	public boolean isParallel() {
+		return parallel;
+	}
+	
+    /**
+     * Sets the number of nodes whose impulses are calculated from the same
+     * positions in the parallel mode. Larger batches give more parallelism,
+     * smaller batches stay closer to the sequential order of GEM.
+     * @param batchSize the number of nodes in every batch, 1024 by default
+     */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+	
+    /**
+     * Returns the number of nodes in every batch of the parallel mode.
+     * @return the number of nodes in every batch
+     */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+    /**
+     * Sets the pool that runs the parallel mode.
+     * @param pool the pool, the common pool by default
+     */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+    /**
+     * Sets the method used to place the nodes before they are moved.
+     * @param placement the method, RANDOM by default
+     */
+	public void setInitialPlacement(InitialPlacement placement) {
+		this.initialPlacement = placement;
+	}
+	
+    /**
+     * Returns the method used to place the nodes before they are moved.
+     * @return the method
+     */
+	public InitialPlacement getInitialPlacement() {
+		return initialPlacement;
+	}
+	
+    /**
+     * Sets the number of pivots used by the Pivot MDS placement.
+     * More pivots give a more faithful placement, but take longer.
+     * @param pivotCount the number of pivots, 50 by default
+     */
+	public void setPivotCount(int pivotCount) {
+		this.pivotCount = Math.max(3, pivotCount);
+	}
+	
+    /**
+     * Returns the number of pivots used by the Pivot MDS placement.
+     * @return the number of pivots
+     */
+	public int getPivotCount() {
+		return pivotCount;
+	}
+	
+    /**
+     * Enables or disables leaf folding. The nodes that are not fixed and
+     * have a single neighbor are left out of the rounds, and placed in a
+     * half circle around their neighbor, facing away from the rest of the
+     * graph, once the other nodes have settled.
+     * @param leafFolding true to fold the leaves, false by default
+     */
+	public void setLeafFolding(boolean leafFolding) {
+		this.leafFolding = leafFolding;
+	}
+	
+    /**
+     * Returns whether the leaves are folded.
+     * @return true if the leaves are folded
+     */
+	public boolean isLeafFolding() {
+		return leafFolding;
+	}
+	
+    /**
+     * Enables or disables folding whole chains of nodes that hang from the
+     * rest of the graph. Only used together with leaf folding.
+     * @param foldChains true to fold the chains, false by default
+     */
+	public void setFoldChains(boolean foldChains) {
+		this.foldChains = foldChains;
+	}
+	
+    /**
+     * Returns whether chains of nodes are folded.
+     * @return true if chains of nodes are folded
+     */
+	public boolean isFoldChains() {
+		return foldChains;
+	}
+	
+    /**
+     * Sets how often the visualization is updated while the algorithm runs.
+     * @param millis the time between two updates in milliseconds, 40 by default
+     */
+	public void setUpdateInterval(long millis) {
+		this.updateInterval = Math.max(0, millis);
+	}
+	
+    /**
+     * Returns how often the visualization is updated while the algorithm runs.
+     * @return the time between two updates in milliseconds
+     */
+	public long getUpdateInterval() {
+		return updateInterval;
+	}
+	
+    /**
+     * Enables or disables the asynchronous mode. The rounds run on a worker
+     * thread and run() returns right away, so the JavaFX application thread
+     * is not blocked. The positions are copied into the visual items on
+     * every JavaFX pulse, at most every update interval. The new nodes are
+     * set to fixed once the rounds are done. If run() is called again in the
+     * meantime, for example by an expand, the algorithm runs again right
+     * after. In this mode run() may be called on any thread: it hands itself
+     * over to the JavaFX application thread, where the run is started and
+     * finished.
+     * @param asynchronous true to run in the background, false by default
+     */
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+	
+    /**
+     * Returns whether the rounds run in the background.
+     * @return true if the rounds run in the background
+     */
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+	
+    /**
+     * Sets the policy that decides when the rounds stop. The maximum
+     * number of rounds always applies on top of it.
+     * @param policy the policy, ConvergencePolicy.temperature(3) by default
+     */
+	public void setConvergencePolicy(ConvergencePolicy policy) {
+		this.convergencePolicy = policy;
+	}
+	
+    /**
+     * Returns the policy that decides when the rounds stop.
+     * @return the policy
+     */
+	public ConvergencePolicy getConvergencePolicy() {
+		return convergencePolicy;
+	}
+	
+    /**
+     * Enables or disables adaptive scheduling. A node whose temperature and
+     * movement have stayed below the park temperature for 5 rounds is
+     * parked: it is only moved every 8th round, until one of its neighbors
+     * moves by an eighth of the desired edge length or more. Late rounds
+     * then mostly move the part of the graph that has not settled yet.
+     * @param adaptiveScheduling true to park calm nodes, false by default
+     */
+	public void setAdaptiveScheduling(boolean adaptiveScheduling) {
+		this.adaptiveScheduling = adaptiveScheduling;
+	}
+	
+    /**
+     * Returns whether calm nodes are parked.
+     * @return true if calm nodes are parked
+     */
+	public boolean isAdaptiveScheduling() {
+		return adaptiveScheduling;
+	}
+	
+    /**
+     * Sets the temperature below which a node counts as calm, see
+     * {@link #setAdaptiveScheduling(boolean)}. Higher values park more
+     * nodes and save more time, at some cost in quality.
+     * @param parkTemperature the temperature, 4 by default
+     */
+	public void setParkTemperature(double parkTemperature) {
+		this.parkTemperature = Math.max(0, parkTemperature);
+	}
+	
+    /**
+     * Returns the temperature below which a node counts as calm.
+     * @return the temperature
+     */
+	public double getParkTemperature() {
+		return parkTemperature;
+	}
+	
+    /**
+     * Enables or disables the spatial order. Instead of shuffling all the
+     * nodes before every round, the nodes are sorted along a Z-order curve
+     * every 10 rounds and cut into blocks of 64 nodes that are close to each
+     * other. Every round visits the blocks, and the nodes inside them, in
+     * random order. The quadtree of the Barnes-Hut approximation is built
+     * along the curve as well. Nodes that are moved one after another then
+     * look at the same data, which is much friendlier to the CPU caches on
+     * large graphs.
+     * @param spatialOrder true to visit the nodes in blocks, false by default
+     */
+	public void setSpatialOrder(boolean spatialOrder) {
+		this.spatialOrder = spatialOrder;
+	}
+	
+    /**
+     * Returns whether the nodes are visited in blocks of nodes that are close to each other.
+     * @return true if the nodes are visited in blocks
+     */
+	public boolean isSpatialOrder() {
+		return spatialOrder;
+	}
+	
+    /**
+     * Enables or disables single precision. The exact mode then scans a
+     * float copy of the coordinates, which is half the memory, and uses
+     * GemVectorKernel to handle 8 or 16 nodes at a time if it has been added
+     * to the project. The rest of GEM stays in double precision. Has no
+     * effect on the other repulsion modes.
+     * @param singlePrecision true to calculate the repulsive forces in single precision, false by default
+     */
+	public void setSinglePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+	}
+	
+    /**
+     * Returns whether the exact mode calculates the repulsive forces in single precision.
+     * @return true if single precision is used
+     */
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+	
+    /**
+     * Enables or disables the component mode. The connected components of
+     * the graph, like the hierarchies of an ontology with several roots,
+     * are then laid out separately, without any repulsion between them.
+     * The components run in parallel on the pool set by setPool(), each
+     * with its own copy of the convergence policy, and are packed next to
+     * each other after every round. Only used when no visible node is fixed, like in the first run.
+     * @param componentLayout true to lay out the components separately, false by default
+     */
+	public void setComponentLayout(boolean componentLayout) {
+		this.componentLayout = componentLayout;
+	}
+	
+    /**
+     * Returns whether the connected components are laid out separately.
+     * @return true if the component mode is enabled
+     */
+	public boolean isComponentLayout() {
+		return componentLayout;
+	}
+	
+    /**
+     * Sets the number of runs of GEM that are made side by side. Every run
+     * has its own seed, and with random placement its own start positions.
+     * The runs take turns on the pool set by setPool(), each with its own
+     * copy of the convergence policy. While they run the first one is
+     * shown, when all of them are done the best one by the quality measure
+     * is kept. Combined with the component mode, every component gets its
+     * own runs. Spare cores thus buy better layouts in the same time.
+     * @param restarts the number of runs, 1 by default
+     */
+	public void setRestarts(int restarts) {
+		this.restarts = Math.max(1, restarts);
+	}
+	
+    /**
+     * Returns the number of runs of GEM that are made side by side.
+     * @return the number of runs
+     */
+	public int getRestarts() {
+		return restarts;
+	}
+	
+    /**
+     * Sets the measure used to pick the best of the runs, see setRestarts().
+     * @param qualityMeasure the measure, CROSSINGS by default
+     */
+	public void setQualityMeasure(QualityMeasure qualityMeasure) {
+		this.qualityMeasure = qualityMeasure;
+	}
+	
+    /**
+     * Returns the measure used to pick the best of the runs.
+     * @return the measure
+     */
+	public QualityMeasure getQualityMeasure() {
+		return qualityMeasure;
+	}
+	
+    /**
+     * Moves the state that is kept for every node between runs off the
+     * heap, into direct memory, or back onto the heap. The state is the
+     * position, temperature, skew and last impulse of every node that has
+     * been visible. It grows with the explored part of the graph, and is
+     * then neither counted against the heap nor copied by the garbage
+     * collector. The engines of the runs keep the state of the visible
+     * nodes there too, but still about 25 bytes per visible node on the
+     * heap: a copy of the positions for the rounds, the fixed flags, the ids
+     * and the order of the nodes. The state that is already there is copied.
+     * @param offHeap true to keep the state off the heap, false by default
+     */
+	public void setOffHeap(boolean offHeap) {
+		useStore(new GemSlotStore(offHeap, offHeap ? store.getFile() : null));
+	}
+	
+    /**
+     * Returns whether the state that is kept for every node between runs is off the heap.
+     * @return true if the state is off the heap
+     */
+	public boolean isOffHeap() {
+		return store.isOffHeap();
+	}
+	
+    /**
+     * Keeps the state that is kept for every node between runs in a file
+     * that is mapped into memory, see setOffHeap(). The operating system
+     * only keeps the parts of the file that are in use in memory, so the
+     * state can be larger than the memory of the machine. The file is
+     * created or overwritten, the state that is already there is copied.
+     * The engines of the runs map their state from temporary files in the
+     * same directory.
+     * @param file the file, null to keep the state in direct memory
+     */
+	public void setStateFile(File file) {
+		useStore(new GemSlotStore(file != null || store.isOffHeap(), file));
+	}
+	
+    /**
+     * Returns the file the state that is kept for every node between runs is mapped from.
+     * @return the file, null if there is none
+     */
+	public File getStateFile() {
+		return store.getFile();
+	}
+	
+    /**
+     * Replaces the store of the state with a new one, keeping the slots.
+     * Nothing changes if the new store would be the same as the old one,
+     * a file that is still mapped must not be overwritten.
+     */
+	private void useStore(GemSlotStore newStore) {
+		if(newStore.isOffHeap() == store.isOffHeap() && Objects.equals(newStore.getFile(), store.getFile())) {
+			return;
+		}
+		newStore.copyFrom(store, slotCount);
+		store = newStore;
+	}
+	
+    /**
+     * Returns where the engines of the runs keep their state: where the
+     * store keeps it, in files next to the state file if there is one.
+     */
+	private GemMemory engineMemory() {
+		File file = store.getFile();
+		return new GemMemory(store.isOffHeap(), file != null ? file.getAbsoluteFile().getParentFile() : null);
+	}
+	
+    /**
+     * Enables or disables the incremental mode. When nodes are expanded,
+     * the new nodes are laid out together with the fixed nodes close to
+     * them only, so the time per expand depends on the size of the
+     * expanded part and not on the whole visible graph. The fixed nodes
+     * closer than the boundary hops move as well, so that they can make
+     * room for the new ones. They start with the temperature, skew and last
+     * impulse their last run has left them with.
+     * @param incremental true to enable the incremental mode
+     */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+	
+    /**
+     * Returns true if the incremental mode is enabled.
+     * @return true if the incremental mode is enabled
+     */
+	public boolean isIncremental() {
+		return incremental;
+	}
+	
+    /**
+     * Sets how many hops around the new nodes the incremental mode includes.
+     * The fixed nodes fewer hops away move with the new nodes, the ones
+     * exactly this many hops away stay where they are and hold the rest of
+     * the layout in place.
+     * @param boundaryHops the number of hops, 2 by default
+     */
+	public void setBoundaryHops(int boundaryHops) {
+		this.boundaryHops = Math.max(0, boundaryHops);
+	}
+	
+    /**
+     * Returns how many hops around the new nodes the incremental mode includes.
+     * @return the number of hops
+     */
+	public int getBoundaryHops() {
+		return boundaryHops;
+	}
+	
+    /**
+     * Enables or disables the far-field of the fixed nodes. Nodes that are
+     * fixed by earlier runs never move, so their repulsion is approximated
+     * with a quadtree that is built once per run. Expanding a few nodes next
+     * to many fixed ones then costs time in proportion to the expanded
+     * nodes, up to a logarithmic factor.
+     * @param frozenFarField true to enable the far-field
+     */
+	public void setFrozenFarField(boolean frozenFarField) {
+		this.frozenFarField = frozenFarField;
+	}
+	
+    /**
+     * Returns true if the far-field of the fixed nodes is enabled.
+     * @return true if the far-field is enabled
+     */
+	public boolean isFrozenFarField() {
+		return frozenFarField;
+	}
+	
+    /**
+     * Enables or disables the warm start of expanded nodes. The temperature,
+     * skew and last impulse of every node are always kept between runs;
+     * with the warm start, new nodes next to fixed ones also start close to
+     * them and cool, so an expand needs far fewer rounds.
+     * @param warmStart true to enable the warm start
+     */
+	public void setWarmStart(boolean warmStart) {
+		this.warmStart = warmStart;
+	}
+	
+    /**
+     * Returns true if the warm start of expanded nodes is enabled.
+     * @return true if the warm start is enabled
+     */
+	public boolean isWarmStart() {
+		return warmStart;
+	}
+	
+    /**
+     * Sets the cooling schedule. After every round of a run, the highest
+     * temperature a node may have is multiplied with this factor, so a run
+     * with factor f is done after about log(3 / 256) / log(f) rounds.
+     * @param coolingFactor the factor, between 0 and 1, 1 by default (no cooling)
+     */
+	public void setCoolingFactor(double coolingFactor) {
+		this.coolingFactor = Math.min(Math.max(coolingFactor, 0), 1);
+	}
+	
+    /**
+     * Returns the factor of the cooling schedule.
+     * @return the cooling factor
+     */
+	public double getCoolingFactor() {
+		return coolingFactor;
+	}
+	
+    /**
+     * Enables or disables the visibility tracking. With tracking, the first
+     * run finds the visible nodes by scanning all the items; after that, the
+     * code that shows and hides items has to call {@link #itemShown(VisualItem)}
+     * and {@link #itemHidden(VisualItem)}, and run() only looks at the nodes
+     * it has been told about.
+     * @param visibilityTracking true to enable the visibility tracking
+     */
+	public void setVisibilityTracking(boolean visibilityTracking) {
+		this.visibilityTracking = visibilityTracking;
+	}
+	
+    /**
+     * Returns true if the visibility tracking is enabled.
+     * @return true if the visibility tracking is enabled
+     */
+	public boolean isVisibilityTracking() {
+		return visibilityTracking;
+	}
+	
+    /**
+     * Tells the layout that an item has been made visible.
+     * @param item the item
+     */
+	public void itemShown(VisualItem item) {
+		if(initialized && !slots.containsKey(item)) {
+			materialize(item, false);
+		}
+	}
+	
+    /**
+     * Tells the layout that an item has been hidden. Its state is released.
+     * @param item the item
+     */
+	public void itemHidden(VisualItem item) {
+		Integer s = slots.remove(item);
+		if(s != null) {
+			release(s);
+		}
+	}
+	
+    /**
+     * Initializes the algorithm and all the variables that are needed.
+     * Nothing is created for the nodes here, see materialize().
+     */
+	private void init() {
+		
+		System.out.println("Initializing algorithm...");
+		
+		slots.clear();
+		slotCount = 0;
+		freeCount = 0;
+		
+		initialized = true;
+		
+		System.out.println("Initialization done.");
+	}
+	
+	/**
+	 * @see prefux.action.Action#run(double)
+	 */
+	public void run(double frac) {
+		
+		// The runner, rerun and the stepper of a run in the background are
+		// only used on the JavaFX application thread, so a call from another
+		// thread that may touch them is handed over.
+		if((asynchronous || runner.isRunning()) && !Platform.isFxApplicationThread()) {
+			Platform.runLater(() -> run(frac));
+			return;
+		}
+		
+		// Still running in the background: run again afterwards.
+		if(runner.isRunning()) {
+			rerun = true;
+			return;
+		}
+		
+		// Continue the run started by step() or runFor(), if there is one.
+		if(stepper == null && !begin()) {
+			return;
+		}
+		
+		background = asynchronous;
+		if(background) {
+			runner.start(items, this::layOut, this::finish, this::abort);
+		} else {
+			layOut();
+			finish();
+		}
+	}
+	
+    /**
+     * Runs at most the given number of rounds and returns. Starts a new run
+     * if none is in progress, otherwise continues the one that is. Between
+     * two calls the layout is paused and the visual items show the positions
+     * so far. The rounds run on the calling thread, also in the asynchronous
+     * mode. Does nothing while a run started by run() is in the background.
+     * @param rounds the maximum number of rounds to run
+     * @return true if the run is not done yet
+     */
+	public boolean step(int rounds) {
+		
+		if(runner.isRunning()) {
+			return true;
+		}
+		if(stepper == null && !begin()) {
+			return false;
+		}
+		
+		background = false;
+		for(int r = 0; r < rounds && !stepper.isDone(); ++r) {
+			advance();
+		}
+		
+		return pause();
+	}
+	
+    /**
+     * Runs rounds until the time budget is used up and returns, like
+     * {@link #step(int)}. The round that is running when the budget runs out
+     * is finished, and at least one round is run. Calling this once per
+     * frame with a budget below the frame time keeps the display responsive.
+     * @param budget the time budget
+     * @return true if the run is not done yet
+     */
+	public boolean runFor(Duration budget) {
+		
+		if(runner.isRunning()) {
+			return true;
+		}
+		if(stepper == null && !begin()) {
+			return false;
+		}
+		
+		background = false;
+		long deadline = System.nanoTime() + budget.toNanos();
+		do {
+			if(stepper.isDone()) {
+				break;
+			}
+			advance();
+		} while(System.nanoTime() < deadline);
+		
+		return pause();
+	}
+	
+    /**
+     * Ends the run in progress with the positions it has reached so far.
+     * In the multilevel mode the levels that have not been reached yet are
+     * placed around their coarser levels. A run in the background ends
+     * after the round that is running.
+     */
+	public void stop() {
+		if(runner.isRunning()) {
+			stopRequested = true;
+		} else if(stepper != null) {
+			stepper.skip();
+			settle();
+			finish();
+		}
+	}
+	
+    /**
+     * Starts a new run: finds the visible nodes, places the new ones and
+     * plans the rounds.
+     * @return false if all the visible nodes are fixed already
+     */
+	private boolean begin() {
+		
+		System.out.println("-------------------------------------");
+		System.out.println("Algorithm started.");
+		
+		startTime = System.nanoTime();
+		
+		// In the first run every visible node is placed from scratch.
+		boolean firstRun = !initialized;
+		
+		if(!initialized) {
+			init();
+		}
+		
+		// Find the visible nodes: by scanning all the items, or from the
+		// nodes that itemShown() and itemHidden() have been called for.
+		if(firstRun || !visibilityTracking) {
+			scanVisible(firstRun);
+		}
+		
+		// Take a snapshot of the visible nodes and their flags.
+		items = new VisualItem[slots.size()];
+		itemSlot = new int[items.length];
+		boolean graphFrozen = true;
+		boolean anyFixed = false;
+		int count = 0;
+		for(int s = 0; s < slotCount; ++s) {
+			
+			if(slotItem[s] == null) {
+				continue;
+			}
+			
+			items[count] = slotItem[s];
+			itemSlot[count++] = s;
+			
+			// If there is at least one node that is not fixed.
+			if(!slotFixed[s]) {
+				
+				// Graph is not frozen; the algorithm has something to do.
+				graphFrozen = false;
+			} else {
+				anyFixed = true;
+			}
+		}
+		
+		// If everything is already frozen: exit.
+		if(graphFrozen) {
+			System.out.println("No new nodes to expand!");
+			return false;
+		}
+		
+		System.out.println("Visible nodes: " + items.length + ".");
+		
+		// Only the visible nodes and the edges between them take part in the layout.
+		visibleGraph = buildVisibleGraph(itemSlot);
+		int[] active = null;
+		
+		// Place the new nodes around their parents, or insert them one by
+		// one. After an expand they start close to where they belong, so
+		// they start cool.
+		boolean[] placed = new boolean[visibleGraph.n];
+		if(initialPlacement == InitialPlacement.PARENT) {
+			double startTemp = anyFixed ? visibleGraph.desiredEdgeLength / 4 : Double.NaN;
+			placed = GemPlacement.aroundParents(visibleGraph, parent, visibleGraph.fixed, startTemp);
+		} else if(initialPlacement == InitialPlacement.INSERTION) {
+			configure(visibleGraph);
+			visibleGraph.insert(visibleGraph.desiredEdgeLength / 4);
+			Arrays.fill(placed, true);
+		} else if(initialPlacement == InitialPlacement.PIVOT_MDS && !anyFixed) {
+			GemPlacement.pivotMds(visibleGraph, pivotCount, pool);
+		}
+		
+		// Place the other new nodes next to the fixed ones.
+		if(warmStart && anyFixed) {
+			warmStart(placed);
+		}
+		
+		// In the incremental mode: only the new nodes and their surroundings.
+		if(incremental && anyFixed) {
+			active = activeSet();
+			System.out.println("Active nodes: " + active.length + ".");
+		}
+		
+		// Leave the folded leaves out of the active nodes. Their degree is
+		// taken from the whole visible graph.
+		anchor = leafFolding ? GemPlacement.foldLeaves(visibleGraph, foldChains) : null;
+		if(anchor != null) {
+			int[] candidates = active;
+			if(candidates == null) {
+				candidates = new int[visibleGraph.n];
+				for(int v = 0; v < candidates.length; ++v) {
+					candidates[v] = v;
+				}
+			}
+			int[] keep = new int[candidates.length];
+			int kept = 0;
+			for(int v : candidates) {
+				if(anchor[v] == -1) {
+					keep[kept++] = v;
+				}
+			}
+			System.out.println("Folded nodes: " + (candidates.length - kept) + ".");
+			active = Arrays.copyOf(keep, kept);
+		}
+		
+		// Let the boundary close to the new nodes move, after folding so that it stays unfolded.
+		if(incremental && anyFixed) {
+			thawBoundary();
+		}
+		
+		// The rotation sensitivity of the engine depends on the number of active nodes.
+		activeGraph = active != null ? visibleGraph.subgraph(active) : visibleGraph;
+		configure(activeGraph);
+		
+		// Update the maximum number of rounds allowed.
+		maxRounds = activeGraph.n * 4;
+		System.out.println("maxRounds set to: " + maxRounds + ".");
+		
+		// Reset the number of rounds.
+		nrRounds = 0;
+		
+		stepper = new GemStepper(convergencePolicy.copy());
+		int[][] components = componentLayout && !anyFixed ? GemComponents.find(activeGraph) : null;
+		if(components != null && components.length > 1) {
+			planComponents(activeGraph, components);
+		} else {
+			planRounds(activeGraph, stepper, multilevel && !anyFixed);
+		}
+		
+		lastUpdate = System.nanoTime();
+		stopRequested = false;
+		return true;
+	}
 	
-	// The gravitational constant.
-	private final double gravitationalConstant = (double) 1 / 32;
+    /**
+     * Runs all the rounds that are left and places the folded leaves.
+     * Runs on the worker thread in the asynchronous mode, so it only
+     * touches the engines.
+     */
+	private void layOut() {
+		while(!stopRequested && !stepper.isDone()) {
+			advance();
+		}
+		stepper.skip();
+		settle();
+	}
 	
-	// The opening angles for oscillation- and rotation-detection.
-	private final double oscillationOpeningAngle = Math.PI / 2;
-	private final double rotationOpeningAngle = Math.PI;
+    /**
+     * Runs one round of GEM. Fixed nodes are not moved.
+     */
+	private void advance() {
+		
+		System.out.println("-------------------------------------");
+		System.out.println("ROUND " + (++nrRounds));
+		
+		// Move every node once and calculate the average temperature.
+		GemEngine e = stepper.getEngine();
+		globalTemp = stepper.round();
+		
+		System.out.println("Global temperature: " + globalTemp);
+		System.out.println("Time elapsed: " + (System.nanoTime() - startTime) / 1000000000 + "s");
+		
+		// Update the visualization, or not. The coarser levels have no visual items.
+		long now = System.nanoTime();
+		if(e == activeGraph && (now - lastUpdate >= updateInterval * 1000000 || globalTemp <= desiredTemp)) {
+			updateVisualization(e);
+			lastUpdate = now;
+		}
+	}
 	
-	// The sensitivity for correcting oscillations and rotations.
-	private final double oscillationSensitivity = 1.1;
-	private double rotationSensitivity; // will be set in init()
+    /**
+     * Ends the run if all the rounds are done, otherwise shows the positions so far.
+     * @return true if the run is not done yet
+     */
+	private boolean pause() {
+		if(stepper.isDone()) {
+			settle();
+			finish();
+			return false;
+		}
+		if(stepper.getEngine() == activeGraph) {
+			updateVisualization(activeGraph);
+		}
+		return true;
+	}
 	
-	private class Vertex {
-		
-		// The corresponding visual item.
-		private final VisualItem item;
+    /**
+     * Copies the positions of the active nodes into the visible graph,
+     * places the folded leaves around the nodes they hang from and shows
+     * the final positions.
+     */
+	private void settle() {
 		
-		// The impulse vector.
-		private double[] impulse = new double[2];
+		if(activeGraph != visibleGraph) {
+			visibleGraph.copyFrom(activeGraph);
+		}
 		
-		// The temperature.
-		private double temp = 256;
+		// Place the folded leaves around the nodes they hang from.
+		if(anchor != null) {
+			GemPlacement.unfoldLeaves(visibleGraph, anchor);
+			updateVisualization(visibleGraph);
+		} else {
+			updateVisualization(activeGraph);
+		}
+	}
+	
+    /**
+     * Ends a run once the rounds are done: keeps the state of the nodes and
+     * fixes them. In the asynchronous mode, items may have been hidden in
+     * the meantime; their slots are skipped.
+     */
+	private void finish() {
 		
-		// The skew.
-		private double skew = 0;
+		// Keep the state of the nodes for the next run. The fixed nodes have
+		// not moved and keep the state they had, which may be none.
+		for(int i = 0; i < items.length; ++i) {
+			int s = itemSlot[i];
+			if(slotItem[s] != items[i]) {
+				continue;
+			}
+			store.set(s, GemSlotStore.X, visibleGraph.x.get(i));
+			store.set(s, GemSlotStore.Y, visibleGraph.y.get(i));
+			if(visibleGraph.fixed[i]) {
+				continue;
+			}
+			store.set(s, GemSlotStore.TEMP, visibleGraph.temp.get(i));
+			store.set(s, GemSlotStore.SKEW, visibleGraph.skew.get(i));
+			store.set(s, GemSlotStore.IMP_X, visibleGraph.impX.get(i));
+			store.set(s, GemSlotStore.IMP_Y, visibleGraph.impY.get(i));
+		}
 		
-		// The current coordinates.
-		private double[] coordinates = new double[2];
+		// When the algorithm has finished, set fixed to true for all nodes
+		// to freeze them so that they won't move anymore. This also enables
+		// the touch-functionality in prefux.controls.GemControl.
+		for(int k = 0; k < activeGraph.n; ++k) {
+			int i = activeGraph.ids[k];
+			if(slotItem[itemSlot[i]] == items[i]) {
+				items[i].setFixed(true);
+				slotFixed[itemSlot[i]] = true;
+			}
+		}
+		if(anchor != null) {
+			for(int i = 0; i < items.length; ++i) {
+				if(anchor[i] != -1 && slotItem[itemSlot[i]] == items[i]) {
+					items[i].setFixed(true);
+					slotFixed[itemSlot[i]] = true;
+				}
+			}
+		}
 		
-		// List containing the neighbors.
-		private List<Vertex> neighbors = new ArrayList<>();
+		stepper = null;
+		System.out.println("Algorithm finished.");
 		
-		private Vertex(VisualItem item) {
-			this.item = item;
-			impulse[0] = 0;
-			impulse[1] = 0;
+		// The runner counts as running until this returns, so run again right after.
+		if(rerun) {
+			rerun = false;
+			Platform.runLater(() -> run(0));
 		}
 	}
-
-	protected transient VisualItem referrer;
-	protected String m_nodeGroup;
-	protected String m_edgeGroup;
-	private static final Logger log = LogManager.getLogger(GraphEmbedderLayout.class);
 	
-	/**
-	 * Create a new GraphEmbedderLayout.
-	 * 
-	 * @param graph the data group to layout. Must resolve to a Graph instance.
-	 */
-	public GraphEmbedderLayout2(String graph) {
-		super(graph);
-		m_nodeGroup = PrefuseLib.getGroupName(graph, Graph.NODES);
-		m_edgeGroup = PrefuseLib.getGroupName(graph, Graph.EDGES);
+    /**
+     * Ends a run whose rounds have thrown on the worker thread. The visual
+     * items keep the positions published last, and the run and a pending
+     * rerun are dropped. The exception has been logged by the runner.
+     */
+	private void abort() {
+		stepper = null;
+		rerun = false;
 	}
 	
     /**
-     * Initializes the algorithm and all the variables that are needed.
+     * Gives an item a slot and creates its state. A node that was laid out
+     * before, hidden and is now shown again is still fixed and keeps the
+     * position of its item. Every other node is placed at a random position.
+     * @param item the item that has become visible
+     * @param reset true if the node is placed at a random position in any case
      */
-	private void init() {
+	private void materialize(VisualItem item, boolean reset) {
 		
-		System.out.println("Initializing algorithm...");
+		int s;
+		if(freeCount > 0) {
+			s = freeSlots[--freeCount];
+		} else {
+			if(slotCount == slotItem.length) {
+				int capacity = Math.max(64, slotCount * 2);
+				store.ensureCapacity(capacity);
+				slotItem = Arrays.copyOf(slotItem, capacity);
+				slotFixed = Arrays.copyOf(slotFixed, capacity);
+			}
+			s = slotCount++;
+		}
 		
-		// Place all the nodes in random positions and add them to nodeList.
-		Iterator<VisualItem> iter = m_vis.items(m_nodeGroup);
-		while(iter.hasNext()) {
-			
-			VisualItem item = iter.next();
+		if(reset || !item.isFixed()) {
 			
 			double newX = (Math.random() * 2048) - 1024;
 			double newY = (Math.random() * 2048) - 1024;
@@ -165,325 +1322,477 @@ public class GraphEmbedderLayout2 extends Layout {
 			item.setY(newY);
 			
 			item.setFixed(false);
-			
-			Vertex v = new Vertex(item);
-			v.coordinates[0] = item.getX();
-			v.coordinates[1] = item.getY();
-			
-			nodeList.add(v);
 		}
 		
-		System.out.println("Nodes added to nodeList: " + nodeList.size() + ".");
+		store.set(s, GemSlotStore.X, item.getX());
+		store.set(s, GemSlotStore.Y, item.getY());
+		store.set(s, GemSlotStore.TEMP, Double.NaN);
+		store.set(s, GemSlotStore.SKEW, 0);
+		store.set(s, GemSlotStore.IMP_X, 0);
+		store.set(s, GemSlotStore.IMP_Y, 0);
+		slotItem[s] = item;
+		slotFixed[s] = item.isFixed();
+		
+		slots.put(item, s);
+	}
+	
+    /**
+     * Finds the visible nodes by scanning all the items. The slots of the
+     * items that are not visible anymore are released, the items that are
+     * visible for the first time get a slot, and the fixed flags are read.
+     * @param reset true if every visible node is placed at a random position
+     */
+	private void scanVisible(boolean reset) {
+		
+		List<VisualItem> itemList = new ArrayList<>();
+		Iterator<VisualItem> iter = m_vis.visibleItems(m_nodeGroup);
+		while(iter.hasNext()) {
+			itemList.add(iter.next());
+		}
+		
+		// Release the slots of the hidden nodes.
+		boolean[] visible = new boolean[slotCount];
+		for(VisualItem item : itemList) {
+			Integer s = slots.get(item);
+			if(s != null) {
+				visible[s] = true;
+			}
+		}
+		Iterator<Integer> it = slots.values().iterator();
+		while(it.hasNext()) {
+			int s = it.next();
+			if(!visible[s]) {
+				it.remove();
+				release(s);
+			}
+		}
+		
+		for(VisualItem item : itemList) {
+			Integer s = slots.get(item);
+			if(s == null) {
+				materialize(item, reset);
+			} else {
+				slotFixed[s] = item.isFixed();
+			}
+		}
+	}
+	
+    /**
+     * Puts a slot on the list of released slots.
+     * @param s the slot, already removed from the map
+     */
+	private void release(int s) {
+		if(freeCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, Math.max(64, freeCount * 2));
+		}
+		freeSlots[freeCount++] = s;
+		slotItem[s] = null;
+		slotFixed[s] = false;
+	}
+	
+    /**
+     * Creates the engine for the visible nodes from their slots. The
+     * neighbors of node i are stored in targets, from offsets[i] to offsets[i + 1].
+     * @param itemSlot the slot of every visible node
+     * @return the engine
+     */
+	private GemEngine buildVisibleGraph(int[] itemSlot) {
+		
+		// The index of the item in every slot, -1 for slots of hidden items.
+		int[] localIndex = new int[slotCount];
+		Arrays.fill(localIndex, -1);
+		for(int i = 0; i < items.length; ++i) {
+			localIndex[itemSlot[i]] = i;
+		}
 		
-		// Make sure the neighbors are added to every node.
-		for(Vertex v : nodeList) {
+		int[] offsets = new int[items.length + 1];
+		int[] targets = new int[16];
+		int count = 0;
+		for(int i = 0; i < items.length; ++i) {
 			
-			Iterator<? extends Edge> it = ((Node) v.item).edges();
+			Iterator<? extends Edge> it = ((Node) items[i]).edges();
 			while(it.hasNext()) {
 				
 				Edge e = it.next();
 				VisualItem u = (VisualItem) e.getSourceNode();
 				
 				// Make sure u and v are not the same node.
-				if(u == v.item) {
+				if(u == items[i]) {
 					u = (VisualItem) e.getTargetNode();
 				}
 				
-				for(Vertex v2 : nodeList) {
-					if(u == v2.item) {
-						v.neighbors.add(v2);
+				// Only add the neighbor if it is visible.
+				Integer s = slots.get(u);
+				if(s != null && localIndex[s] != -1) {
+					if(count == targets.length) {
+						targets = Arrays.copyOf(targets, count * 2);
 					}
+					targets[count++] = localIndex[s];
 				}
 			}
+			
+			offsets[i + 1] = count;
 		}
 		
-		initialized = true;
-		
-		System.out.println("Initialization done.");
-	}
-	
-	/**
-	 * @see prefux.action.Action#run(double)
-	 */
-	public void run(double frac) {
-		
-		System.out.println("-------------------------------------");
-		System.out.println("Algorithm started.");
-		
-		long startTime = System.nanoTime();
-		
-		if(!initialized) {
-			init();
-		}
-		
-		boolean graphFrozen = true;
-		
-		// Add all the visible nodes from nodeList to nodeListVisible
-		nodeListVisible.clear();
-		for(Vertex v : nodeList) {
-			
-			if(v.item.isVisible()) {
-				
-				nodeListVisible.add(v);
-				
-				// If there is at least one node that is not fixed.
-				if(!v.item.isFixed()) {
-					
-					// Graph is not frozen; the algorithm has something to do.
-					graphFrozen = false;
+		parent = new int[items.length];
+		Arrays.fill(parent, -1);
+		for(int i = 0; i < items.length; ++i) {
+			Iterator<? extends Node> it = ((Node) items[i]).inNeighbors();
+			while(it.hasNext() && parent[i] == -1) {
+				Integer s = slots.get((VisualItem) it.next());
+				if(s != null && localIndex[s] != -1 && localIndex[s] != i) {
+					parent[i] = localIndex[s];
 				}
 			}
 		}
 		
-		// If everything is already frozen: exit.
-		if(graphFrozen) {
-			System.out.println("No new nodes to expand!");
-			return;
+		GemEngine g = new GemEngine(offsets, Arrays.copyOf(targets, count), engineMemory());
+		for(int i = 0; i < items.length; ++i) {
+			int s = itemSlot[i];
+			g.x.put(i, store.get(s, GemSlotStore.X));
+			g.y.put(i, store.get(s, GemSlotStore.Y));
+			double temp = store.get(s, GemSlotStore.TEMP);
+			if(!Double.isNaN(temp)) {
+				g.temp.put(i, temp);
+			}
+			g.skew.put(i, store.get(s, GemSlotStore.SKEW));
+			g.impX.put(i, store.get(s, GemSlotStore.IMP_X));
+			g.impY.put(i, store.get(s, GemSlotStore.IMP_Y));
+			g.fixed[i] = slotFixed[s];
 		}
 		
-		System.out.println("Nodes added to nodeListVisible: " + nodeListVisible.size() + ".");
-		
-		// Update the maximum number of rounds allowed.
-		maxRounds = nodeListVisible.size() * 4;
-		System.out.println("maxRounds set to: " + maxRounds + ".");
-		
-		// Update the rotation sensitivity.
-		rotationSensitivity = (double) 1 / (2 * nodeListVisible.size());
-		System.out.println("rotationSensitivity set to: " + rotationSensitivity + ".");
-		
-		// Reset the global temperature and the number of rounds.
-		globalTemp = 9999;
-		nrRounds = 0;
+		return g;
+	}
+	
+    /**
+     * Places every new node that has fixed neighbors at the center
+     * of those neighbors, plus a random offset. Its temperature is set to the
+     * average distance of the neighbors to their center, but at least a
+     * quarter of the desired edge length: a node between far away
+     * neighbors has a long way to go, a leaf next to its parent does not.
+     * New nodes without fixed neighbors are left as they are.
+     * @param skip true for the nodes that have been placed already
+     */
+	private void warmStart(boolean[] skip) {
 		
-		// Update the sum of all positions, only use nodes that are visible or fixed.
-		sumPos[0] = 0;
-		sumPos[1] = 0;
-		for(Vertex v : nodeList) {
-			if(v.item.isVisible() || v.item.isFixed()) {
-				sumPos[0] += v.coordinates[0];
-				sumPos[1] += v.coordinates[1];
-			}
-		}
+		GemEngine g = visibleGraph;
 		
-		while(globalTemp >= desiredTemp && nrRounds < maxRounds) {
-			
-			System.out.println("-------------------------------------");
-			System.out.println("ROUND " + (++nrRounds));
+		for(int v = 0; v < g.n; ++v) {
 			
-			// Reset the global temperature at the start of every round.
-			globalTemp = 0;
-			int currentGraphSize = 0;
+			if(g.fixed[v] || skip[v]) {
+				continue;
+			}
 			
-			// Shuffle the list before every iteration.
-			Collections.shuffle(nodeListVisible);
-			for(Vertex v : nodeListVisible) {
-				
-				// If the node is fixed: skip it.
-				if(v.item.isFixed()) {
-					continue;
+			// The center of the fixed neighbors.
+			double centerX = 0;
+			double centerY = 0;
+			int count = 0;
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				if(g.fixed[u]) {
+					centerX += g.x.get(u);
+					centerY += g.y.get(u);
+					++count;
 				}
-				
-				++currentGraphSize;
-				
-				// Calculate the impulse. 
-				double[] imp = calculateImpulse(v);
-				
-				// Use the impulse to calculate the temperature and move the node.
-				calculateTemperature(v, imp);
 			}
 			
+			if(count == 0) {
+				continue;
+			}
 			
+			centerX /= count;
+			centerY /= count;
 			
-			// Calculate the average temperature.
-			globalTemp = globalTemp / currentGraphSize;
-			
-			System.out.println("Global temperature: " + globalTemp);
-			System.out.println("Time elapsed: " + (System.nanoTime() - startTime) / 1000000000 + "s");
+			// The average distance of the fixed neighbors to their center.
+			double spread = 0;
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				if(g.fixed[u]) {
+					spread += Math.hypot(g.x.get(u) - centerX, g.y.get(u) - centerY);
+				}
+			}
+			spread /= count;
 			
-			// Update the visualization, or not.
-			if(nrRounds % updateFrequency == 0 || globalTemp <= desiredTemp) {
-				System.out.println("Updating visualization...");
-				for(Vertex v : nodeListVisible) {
-					v.item.setX(v.coordinates[0]);
-					v.item.setY(v.coordinates[1]);
+			double offset = g.desiredEdgeLength / 2;
+			g.x.put(v, centerX + (g.random().nextDouble() - 0.5) * offset);
+			g.y.put(v, centerY + (g.random().nextDouble() - 0.5) * offset);
+			g.temp.put(v, Math.min(Math.max(spread, g.desiredEdgeLength / 4), g.maxTemp));
+			g.skew.put(v, 0);
+			g.impX.put(v, 0);
+			g.impY.put(v, 0);
+		}
+	}
+	
+    /**
+     * Lets the fixed nodes fewer than boundaryHops edges away from the new
+     * nodes move, so that the part of the layout around an expand can make
+     * room for it. They start with the temperature, skew and last impulse
+     * they were left with by their last run, so a node that had settled
+     * only moves a little. Nodes without a stored state, which have not
+     * been laid out since they were shown, stay fixed, and so do the nodes
+     * boundaryHops edges away, which hold the active nodes in place.
+     */
+	private void thawBoundary() {
+		
+		GemEngine g = visibleGraph;
+		
+		int[] hops = new int[g.n];
+		int[] queue = new int[g.n];
+		int head = 0;
+		int tail = 0;
+		for(int v = 0; v < g.n; ++v) {
+			hops[v] = g.fixed[v] ? -1 : 0;
+			if(!g.fixed[v]) {
+				queue[tail++] = v;
+			}
+		}
+		
+		int thawed = 0;
+		while(head < tail) {
+			int v = queue[head++];
+			if(hops[v] + 1 >= boundaryHops) {
+				continue;
+			}
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				if(hops[u] == -1) {
+					hops[u] = hops[v] + 1;
+					queue[tail++] = u;
+					if(!Double.isNaN(store.get(itemSlot[u], GemSlotStore.TEMP))) {
+						g.fixed[u] = false;
+						++thawed;
+					}
 				}
 			}
 		}
 		
-		// When the algorithm has finished, set fixed to true for all nodes
-		// to freeze them so that they won't move anymore. This also enables
-		// the touch-functionality in prefux.controls.GemControl.
-		for(Vertex v : nodeListVisible) {
-			v.item.setFixed(true);
+		System.out.println("Boundary nodes that move: " + thawed + ".");
+	}
+	
+    /**
+     * Collects the visible nodes that are not fixed, plus the nodes at
+     * most boundaryHops edges away from them, in a breadth first search.
+     * @return the active nodes
+     */
+	private int[] activeSet() {
+		
+		GemEngine g = visibleGraph;
+		
+		boolean[] added = new boolean[g.n];
+		int[] active = new int[g.n];
+		int count = 0;
+		for(int v = 0; v < g.n; ++v) {
+			if(!g.fixed[v]) {
+				added[v] = true;
+				active[count++] = v;
+			}
 		}
 		
-		System.out.println("Algorithm finished.");
+		// Every hop adds the neighbors of the nodes added by the previous hop.
+		int from = 0;
+		for(int hop = 0; hop < boundaryHops && from < count; ++hop) {
+			int to = count;
+			for(int k = from; k < to; ++k) {
+				int v = active[k];
+				for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+					int u = g.targets.get(e);
+					if(!added[u]) {
+						added[u] = true;
+						active[count++] = u;
+					}
+				}
+			}
+			from = to;
+		}
+		
+		return Arrays.copyOf(active, count);
 	}
 	
     /**
-     * Calculates the scaling factor.
-     * @param v the vertex for which we want the scaling factor
-     * @return the scaling factor
+     * Copies the settings of the layout to an engine.
+     * @param e the engine
      */
-	private double calculateScalingFactor(Vertex v) {
-		return 1 + v.neighbors.size() / 2;
+	private void configure(GemEngine e) {
+		e.repulsionMode = repulsionMode;
+		e.theta = theta;
+		e.gridSize = gridSize;
+		e.euclideanDistance = euclideanDistance;
+		e.parallel = parallel;
+		e.batchSize = batchSize;
+		e.pool = pool;
+		e.adaptiveScheduling = adaptiveScheduling;
+		e.parkTemperature = parkTemperature;
+		e.spatialOrder = spatialOrder;
+		e.singlePrecision = singlePrecision;
+		e.frozenFarField = frozenFarField;
+		e.coolingFactor = coolingFactor;
+		e.restartCooling();
 	}
 	
     /**
-     * Calculates the barycenter, or the center of mass.
-     * @return the coordinates for the barycenter
+     * Plans the rounds of GEM on a graph: one run, on a hierarchy of
+     * coarser and coarser versions of the graph or not, or several runs.
+     * @param e the engine holding the visible graph
+     * @param plan the stepper to add the rounds to
+     * @param levels true to use the multilevel mode
      */
-	private double[] calculateBarycenter() {
-		double[] center = new double[2];
-		center[0] = sumPos[0] / nodeListVisible.size();
-		center[1] = sumPos[1] / nodeListVisible.size();
-		return center;
+	private void planRounds(GemEngine e, GemStepper plan, boolean levels) {
+		if(restarts > 1) {
+			planRestarts(e, plan, levels);
+		} else if(levels) {
+			planMultilevel(e, plan);
+		} else {
+			plan.add(e, Math.min(maxRounds, e.n * 4), null);
+		}
 	}
 	
     /**
-     * Calculates the impulse, which is the direction the
-     * node wants to move towards.
-     * @param v the vertex for which we want the impulse
-     * @return an impulse vector
+     * Plans several runs of GEM on copies of a graph, each with its own
+     * seed. The first copy is shown until all the runs are done, then the
+     * best one is kept.
+     * @param e the engine holding the visible graph
+     * @param plan the stepper to add the rounds to
+     * @param levels true to use the multilevel mode
      */
-	private double[] calculateImpulse(Vertex v) {
-		
-		// Attraction to the barycenter.
-		double[] impulse = new double[2];
-		impulse = calculateBarycenter();
+	private void planRestarts(GemEngine e, GemStepper plan, boolean levels) {
 		
-		impulse[0] = impulse[0] - v.coordinates[0];
-		impulse[1] = impulse[1] - v.coordinates[1];
-		
-		// Apply scaling factor.
-		double scalingFactor = calculateScalingFactor(v);
-		impulse[0] = impulse[0] * gravitationalConstant * scalingFactor;
-		impulse[1] = impulse[1] * gravitationalConstant * scalingFactor;
-		
-		// Random disturbance vector; default range: [-32,32] * [-32,32].
-		impulse[0] = impulse[0] + Math.random() * 40 - 20;
-		impulse[1] = impulse[1] + Math.random() * 40 - 20;
-		
-		double desSquared = desiredEdgeLength * desiredEdgeLength;
+		int[] all = new int[e.n];
+		for(int i = 0; i < all.length; ++i) {
+			all[i] = i;
+		}
 		
-		// For every node in the graph: calculate the repulsive forces.
-		// NOTE: this is the most time-critical part of the algorithm.
-		for(Vertex u : nodeListVisible) {
-			
-			// If u and v are the same item: skip the iteration.
-			if(u.item == v.item) {
-				continue;
+		SplittableRandom seeds = e.random().split();
+		GemEngine[] copies = new GemEngine[restarts];
+		List<GemStepper> plans = new ArrayList<>();
+		for(int r = 0; r < copies.length; ++r) {
+			copies[r] = e.subgraph(all);
+			copies[r].seed(seeds.nextLong());
+			if(r > 0 && initialPlacement == InitialPlacement.RANDOM && !warmStart) {
+				copies[r].randomize();
 			}
-			
-			double[] delta = new double[2];
-			delta[0] = v.coordinates[0] - u.coordinates[0];
-			delta[1] = v.coordinates[1] - u.coordinates[1];
-			
-			double distance;
-			
-			if(euclideanDistance) {
-				distance = Math.sqrt(delta[0] * delta[0] + delta[1] * delta[1]);
+			GemStepper copyPlan = new GemStepper(convergencePolicy.copy());
+			if(levels) {
+				planMultilevel(copies[r], copyPlan);
 			} else {
-				distance = Math.abs(delta[0]) + Math.abs(delta[1]);
-			}
-			
-			if(distance != 0) {
-				double scale = desSquared / (distance * distance);
-				impulse[0] = impulse[0] + delta[0] * scale;
-				impulse[1] = impulse[1] + delta[1] * scale;
+				copyPlan.add(copies[r], Math.min(maxRounds, e.n * 4), null);
 			}
+			plans.add(copyPlan);
 		}
 		
-		double desSquaredScaled = desSquared * scalingFactor;
+		plan.addParts(e, plans, pool, () -> keepBest(e, copies, plans));
+	}
+	
+    /**
+     * Copies the best of the runs of planRestarts() into the engine they
+     * were copied from once all of them are done, the first one before.
+     * @param e the engine the runs were copied from
+     * @param copies the engines of the runs
+     * @param plans the steppers of the runs
+     */
+	private void keepBest(GemEngine e, GemEngine[] copies, List<GemStepper> plans) {
 		
-		// For every node connected to v: calculate the attractive forces.
-		for(Vertex u : v.neighbors) {
-			
-			// Skip the nodes that are invisible.
-			if(!u.item.isVisible()) {
-				continue;
-			}
-			
-			double[] delta = new double[2];
-			
-			delta[0] = v.coordinates[0] - u.coordinates[0];
-			delta[1] = v.coordinates[1] - u.coordinates[1];
-			
-			double distance;
-			
-			if(euclideanDistance) {
-				distance = Math.sqrt(delta[0] * delta[0] + delta[1] * delta[1]);
-			} else {
-				distance = Math.abs(delta[0]) + Math.abs(delta[1]);
+		for(GemStepper copyPlan : plans) {
+			if(!copyPlan.isDone()) {
+				e.copyFrom(copies[0]);
+				return;
 			}
-			
-			double scale = (distance * distance) / desSquaredScaled;
-			
-			impulse[0] = impulse[0] - delta[0] * scale;
-			impulse[1] = impulse[1] - delta[1] * scale;
 		}
 		
-		return impulse;
+		int best = 0;
+		double bestScore = Double.MAX_VALUE;
+		for(int r = 0; r < copies.length; ++r) {
+			double score = GemQuality.score(copies[r], qualityMeasure);
+			System.out.println("Run " + (r + 1) + ": " + qualityMeasure + " " + score + ".");
+			if(score < bestScore) {
+				bestScore = score;
+				best = r;
+			}
+		}
+		System.out.println("Keeping run " + (best + 1) + ".");
+		e.copyFrom(copies[best]);
 	}
 	
     /**
-     * Calculates the temperature, which is the distance the
-     * node is going to move. The node is then moved in the 
-     * @param v the vertex that is going to be moved
-     * @param impulse the vector that is returned from {@link #calculateImpulse(Vertex)}
+     * Plans the rounds of GEM on every connected component of a graph on
+     * its own. The components are packed after every round.
+     * @param e the engine holding the visible graph
+     * @param components the nodes of every component
      */
-	private void calculateTemperature(Vertex v, double[] impulse) {
+	private void planComponents(GemEngine e, int[][] components) {
 		
-		// If the current impulse is not 0.
-		if(impulse[0] != 0 || impulse[1] != 0) {
-			
-			// Scale the impulse with the current temperature.
-			double length = Math.sqrt(impulse[0] * impulse[0] + impulse[1] * impulse[1]);
-			impulse[0] = v.temp * impulse[0] / length;
-			impulse[1] = v.temp * impulse[1] / length;
-			
-			// Update v's coordinates.
-			v.coordinates[0] += impulse[0];
-			v.coordinates[1] += impulse[1];
-			
-			// Update the sum of all node-coordinates (used for calculating the barycenter).
-			sumPos[0] += impulse[0];
-			sumPos[1] += impulse[1];
+		System.out.println("Number of components: " + components.length + ".");
+		
+		GemEngine[] parts = new GemEngine[components.length];
+		List<GemStepper> plans = new ArrayList<>();
+		for(int c = 0; c < parts.length; ++c) {
+			parts[c] = e.subgraph(components[c]);
+			GemStepper plan = new GemStepper(convergencePolicy.copy());
+			planRounds(parts[c], plan, multilevel);
+			plans.add(plan);
 		}
 		
-		double[] oldImpulse = v.impulse;
+		stepper.addParts(e, plans, pool, () -> GemComponents.pack(e, parts, e.desiredEdgeLength));
+	}
+	
+    /**
+     * Plans the rounds of GEM on a hierarchy of coarser and coarser versions
+     * of the graph. The coarsest graph is laid out from random positions.
+     * Every finer level is then placed around the positions of the level
+     * above it and refined with a few rounds at a lower temperature.
+     * @param e the engine holding the visible graph
+     * @param plan the stepper to add the rounds to
+     */
+	private void planMultilevel(GemEngine e, GemStepper plan) {
 		
-		// If the last impulse was not 0.
-		if(oldImpulse[0] != 0 || oldImpulse[1] != 0) {
-			
-			// Calculate the angle between the last impulse and the current impulse.
-			double uLen = Math.sqrt(impulse[0] * impulse[0] + impulse[1] * impulse[1]);
-			double vLen = Math.sqrt(oldImpulse[0] * oldImpulse[0] + oldImpulse[1] * oldImpulse[1]);
-			double dot = impulse[0] * oldImpulse[0] + impulse[1] * oldImpulse[1];
-			double cosAngle = dot / (uLen * vLen);
-			double angle = Math.acos(cosAngle);
-			
-			// Check for rotation.
-			if(Math.sin(angle) >= Math.sin((Math.PI / 2) + (rotationOpeningAngle / 2))) {
-				v.skew = v.skew + rotationSensitivity * Math.signum(Math.sin(angle));
-			}
-			
-			// Check for oscillation or move in the right direction.
-			if(Math.abs(Math.cos(angle)) >= Math.cos(oscillationOpeningAngle / 2)) {
-				if(Math.cos(angle) > 0) { // Move in the right direction detected: increase temperature.
-					v.temp = v.temp * oscillationSensitivity;
-				} else { // Oscillation detected: decrease temperature.
-					v.temp = v.temp / oscillationSensitivity;
-				}
-			}
-			
-			v.temp = v.temp * (1 - Math.abs(v.skew));
-			v.temp = Math.min(v.temp, maxTemp);
+		GemMultilevel hierarchy = new GemMultilevel(GemMemory.toArray(e.offsets), GemMemory.toArray(e.targets), e.random());
+		System.out.println("Number of levels: " + hierarchy.getLevelCount() + ".");
+		
+		// Create the engines of all the coarser levels.
+		GemEngine[] levels = new GemEngine[hierarchy.getLevelCount()];
+		levels[0] = e;
+		for(int l = 1; l < levels.length; ++l) {
+			levels[l] = new GemEngine(hierarchy.getOffsets(l), hierarchy.getTargets(l), e.memory);
+			levels[l].copySettings(e);
+			levels[l].seed(e.random().nextLong());
+			System.out.println("Level " + l + ": " + levels[l].n + " nodes.");
 		}
 		
-		v.impulse = impulse;
+		// Lay out the coarsest level from random positions.
+		GemEngine coarsest = levels[levels.length - 1];
+		if(coarsest != e) {
+			coarsest.randomize();
+		}
+		plan.add(coarsest, coarsest.n * 4, null);
 		
-		// Add the node's temperature to the global temperature.
-		globalTemp += v.temp;
+		// Place every finer level around its parents and refine it.
+		for(int l = levels.length - 2; l >= 0; --l) {
+			GemEngine fine = levels[l];
+			GemEngine coarse = levels[l + 1];
+			int[] parent = hierarchy.getParent(l);
+			int level = l;
+			plan.add(fine, refinementRounds, () -> {
+				fine.interpolate(coarse, parent, e.desiredEdgeLength / 2, refinementTemp);
+				System.out.println("Refining level " + level + ".");
+			});
+		}
+	}
+	
+    /**
+     * Copies the coordinates of the nodes to their visual items. In the
+     * asynchronous mode they are published instead, and copied on the
+     * next JavaFX pulse.
+     * @param e the engine holding the nodes
+     */
+	private void updateVisualization(GemEngine e) {
+		System.out.println("Updating visualization...");
+		if(background) {
+			runner.publish(e);
+			return;
+		}
+		for(int i = 0; i < e.n; ++i) {
+			VisualItem item = items[e.ids[i]];
+			item.setX(e.x.get(i));
+			item.setY(e.y.get(i));
+		}
 	}
 }
@@ -0,0 +1,27 @@
+package prefux.action.layout.graph;
+
+/*
+ * The methods that can be used to place the nodes before GEM starts
+ * moving them, in GraphEmbedderLayout and GraphEmbedderLayout2.
+ */
+public enum InitialPlacement {
+
+	// Every node is placed at a random position in a 2048 * 2048 square.
+	RANDOM,
+
+	// Every node is placed on a fan around its parent (the node of its first
+	// incoming edge), once the parent has been placed. Nodes without a
+	// parent, and nodes already placed by an earlier run, are the starting
+	// points and keep their positions.
+	PARENT,
+
+	// The insertion phase of the original GEM algorithm: the nodes are added
+	// one by one in breadth first order, each at the barycenter of its
+	// neighbors that are already placed, and moved a few times. O(n^2).
+	INSERTION,
+
+	// Pivot MDS: the graph distances to a few pivot nodes are projected
+	// onto a plane, which gives a layout that is right on a large scale.
+	// O(k * m) for k pivots. Only used when none of the nodes are fixed.
+	PIVOT_MDS
+}
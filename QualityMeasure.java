@@ -0,0 +1,23 @@
+package prefux.action.layout.graph;
+
+/*
+ * The measures that can be used to pick the best of several runs of GEM
+ * in GraphEmbedderLayout and GraphEmbedderLayout2, see setRestarts().
+ * Lower is better for all of them.
+ */
+public enum QualityMeasure {
+
+	// The number of pairs of edges that cross. Edges that share a node
+	// never count. O(m log m) plus the pairs of edges that overlap along
+	// the x-axis.
+	CROSSINGS,
+
+	// How much the distances between the nodes differ from their graph
+	// distances times the desired edge length, averaged over the pairs of
+	// up to 50 nodes and every other node. O(n + m) per node.
+	STRESS,
+
+	// The variance of the edge lengths, divided by the squared average
+	// length so that it does not depend on the size of the layout. O(m).
+	EDGE_LENGTH_VARIANCE
+}
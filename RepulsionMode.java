@@ -0,0 +1,20 @@
+package prefux.action.layout.graph;
+
+/*
+ * The methods that can be used to calculate the repulsive forces
+ * in GraphEmbedderLayout and GraphEmbedderLayout2.
+ */
+public enum RepulsionMode {
+
+	// Every pair of nodes is visited: O(n^2) per round.
+	EXACT,
+
+	// Distant groups of nodes are approximated by their center of mass
+	// using a quadtree that is rebuilt every round: O(n log n) per round.
+	BARNES_HUT,
+
+	// The nodes are spread onto a regular mesh and the forces are calculated
+	// with FFT convolutions, then interpolated back: O(n + G^2 log G) per
+	// round for a mesh of G * G points. Always uses the Euclidean distance.
+	GRID
+}
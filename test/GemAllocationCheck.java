@@ -0,0 +1,66 @@
+package prefux.action.layout.graph;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Checks that a round allocates nothing once the engine has warmed up,
+ * with every repulsion mode, sequentially and in parallel. The bytes are
+ * counted with the allocation counters of the JVM, for the calling thread
+ * and the threads of the pool together. Submitting the round to the pool
+ * and parking its threads allocate a few dozen bytes inside the JDK, no
+ * matter how many nodes there are, so the parallel rounds get a small
+ * allowance.
+ */
+public class GemAllocationCheck {
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) {
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		for(boolean parallel : new boolean[] { false, true }) {
+			for(RepulsionMode mode : RepulsionMode.values()) {
+				GemEngine g = GemCheck.randomGraph(4000, 0.1, 5);
+				g.repulsionMode = mode;
+				g.gridSize = 64;
+				g.parallel = parallel;
+				g.pool = pool;
+				measure(g, mode + (parallel ? ", parallel" : ""), parallel ? 256 : 64);
+			}
+		}
+		pool.shutdown();
+	}
+
+	/**
+	 * Runs some rounds to warm up, then checks the bytes allocated by the
+	 * rounds after them.
+	 */
+	private static void measure(GemEngine g, String name, long maxPerRound) {
+
+		for(int r = 0; r < 20; ++r) {
+			g.round();
+		}
+
+		long[] threads = THREADS.getAllThreadIds();
+		long before = allocated(threads);
+		int rounds = 20;
+		for(int r = 0; r < rounds; ++r) {
+			g.round();
+		}
+		long perRound = (allocated(threads) - before) / rounds;
+
+		// The counters themselves allocate a little on the calling thread.
+		GemCheck.check(perRound < maxPerRound, String.format("bytes allocated per round of %d nodes (%s): %d < %d",
+				g.n, name, perRound, maxPerRound));
+	}
+
+	private static long allocated(long[] threads) {
+		long sum = 0;
+		for(long bytes : THREADS.getThreadAllocatedBytes(threads)) {
+			sum += Math.max(bytes, 0);
+		}
+		return sum;
+	}
+}
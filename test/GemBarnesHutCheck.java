@@ -0,0 +1,97 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/*
+ * Compares the repulsive forces of the Barnes-Hut quadtree with the exact
+ * forces, on the positions of a small graph before and after it has been
+ * laid out. The layouts use the Euclidean distance. With the Manhattan
+ * distance the center of mass is a worse stand-in for a group of nodes,
+ * so the errors are larger.
+ */
+public class GemBarnesHutCheck {
+
+	public static void main(String[] args) {
+
+		selfExcluded();
+
+		GemEngine g = GemCheck.randomGraph(500, 0.1, 1);
+		compare(g, "random", true, 0.02, 0.1);
+		compare(g, "random", false, 0.1, 0.4);
+
+		GemCheck.layOut(g);
+		compare(g, "laid out", true, 0.02, 0.1);
+		compare(g, "laid out", false, 0.1, 0.4);
+	}
+
+	/**
+	 * A node in the corner of a cell, with the rest of the cell's mass in
+	 * the opposite corner. The center of mass of the cell is far enough
+	 * away to pass the opening test, but the node must not repel itself.
+	 */
+	private static void selfExcluded() {
+
+		int n = 22;
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		xs[1] = 100;
+		ys[1] = 100;
+		SplittableRandom random = new SplittableRandom(1);
+		for(int i = 2; i < n; ++i) {
+			xs[i] = 49 + random.nextDouble() * 0.9;
+			ys[i] = 49 + random.nextDouble() * 0.9;
+		}
+
+		double error = error(xs, ys, n, 0, true);
+		GemCheck.check(error < 1e-3, String.format("Barnes-Hut node in a cell corner: error %.2e < 1e-3", error));
+	}
+
+	/**
+	 * Checks the average and the 99th percentile of the error of the forces
+	 * on all the nodes.
+	 */
+	private static void compare(GemEngine g, String positions, boolean euclidean, double maxMean, double maxPercentile) {
+
+		double[] errors = new double[g.n];
+		double sum = 0;
+		for(int i = 0; i < g.n; ++i) {
+			errors[i] = error(g.x.array(), g.y.array(), g.n, i, euclidean);
+			sum += errors[i];
+		}
+		Arrays.sort(errors);
+		double mean = sum / g.n;
+		double percentile = errors[(int) (0.99 * (g.n - 1))];
+
+		String name = positions + (euclidean ? ", Euclidean" : ", Manhattan");
+		GemCheck.check(mean < maxMean,
+				String.format("Barnes-Hut force error (%s): mean %.4f < %s", name, mean, maxMean));
+		GemCheck.check(percentile < maxPercentile,
+				String.format("Barnes-Hut force error (%s): 99th percentile %.4f < %s", name, percentile, maxPercentile));
+	}
+
+	/**
+	 * Returns the difference between the approximated and the exact force
+	 * on a node, relative to the exact force, with theta = 0.8.
+	 */
+	private static double error(double[] xs, double[] ys, int n, int i, boolean euclidean) {
+
+		double desSquared = 128 * 128;
+		double[] exact = new double[2];
+		for(int j = 0; j < n; ++j) {
+			double dx = xs[i] - xs[j];
+			double dy = ys[i] - ys[j];
+			double distance = euclidean ? Math.sqrt(dx * dx + dy * dy) : Math.abs(dx) + Math.abs(dy);
+			double scale = distance != 0 ? desSquared / (distance * distance) : 0;
+			exact[0] += dx * scale;
+			exact[1] += dy * scale;
+		}
+
+		GemQuadTree tree = new GemQuadTree();
+		tree.build(xs, ys, n);
+		double[] approximated = new double[2];
+		tree.accumulateRepulsion(xs[i], ys[i], i, 0.8, desSquared, euclidean, approximated, GemQuadTree.newStack());
+
+		return Math.hypot(approximated[0] - exact[0], approximated[1] - exact[1]) / Math.hypot(exact[0], exact[1]);
+	}
+}
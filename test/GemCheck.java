@@ -0,0 +1,149 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/*
+ * Helpers shared by the checks in this directory: graphs to lay out and a
+ * way to report the result of a check. Every check is a class with a main
+ * method that throws an AssertionError when a check fails. See run.sh.
+ */
+final class GemCheck {
+
+	private GemCheck() {
+	}
+
+	/**
+	 * Creates an engine for a random tree with some extra edges, with every
+	 * node at a random position in a 2048 * 2048 square around the origin.
+	 * @param n the number of nodes
+	 * @param extra the number of extra edges, as a fraction of n
+	 * @param seed the seed of the graph and the positions
+	 * @return the engine
+	 */
+	static GemEngine randomGraph(int n, double extra, long seed) {
+
+		SplittableRandom random = new SplittableRandom(seed);
+		int extraEdges = (int) (n * extra);
+		int[] from = new int[n - 1 + extraEdges];
+		int[] to = new int[from.length];
+		for(int i = 1; i < n; ++i) {
+			from[i - 1] = random.nextInt(i);
+			to[i - 1] = i;
+		}
+		for(int k = n - 1; k < from.length; ++k) {
+			from[k] = random.nextInt(n);
+			to[k] = random.nextInt(n);
+		}
+
+		GemEngine g = engine(n, from, to);
+		g.seed(seed);
+		g.randomize();
+		return g;
+	}
+
+	/**
+	 * Creates an engine for a forest of random trees, with every node at a
+	 * random position in a 2048 * 2048 square around the origin.
+	 * @param trees the number of trees
+	 * @param size the number of nodes of every tree
+	 * @param seed the seed of the graph and the positions
+	 * @return the engine
+	 */
+	static GemEngine forest(int trees, int size, long seed) {
+
+		SplittableRandom random = new SplittableRandom(seed);
+		int n = trees * size;
+		int[] from = new int[trees * (size - 1)];
+		int[] to = new int[from.length];
+		int count = 0;
+		for(int t = 0; t < trees; ++t) {
+			int root = t * size;
+			for(int i = 1; i < size; ++i) {
+				from[count] = root + random.nextInt(i);
+				to[count++] = root + i;
+			}
+		}
+
+		GemEngine g = engine(n, from, to);
+		g.seed(seed);
+		g.randomize();
+		return g;
+	}
+
+	/**
+	 * Creates an engine for a graph given by its edges. Loops are left out.
+	 */
+	private static GemEngine engine(int n, int[] from, int[] to) {
+
+		int[] offsets = new int[n + 1];
+		for(int k = 0; k < from.length; ++k) {
+			if(from[k] != to[k]) {
+				++offsets[from[k] + 1];
+				++offsets[to[k] + 1];
+			}
+		}
+		for(int i = 0; i < n; ++i) {
+			offsets[i + 1] += offsets[i];
+		}
+
+		int[] targets = new int[offsets[n]];
+		int[] fill = Arrays.copyOf(offsets, n);
+		for(int k = 0; k < from.length; ++k) {
+			if(from[k] != to[k]) {
+				targets[fill[from[k]]++] = to[k];
+				targets[fill[to[k]]++] = from[k];
+			}
+		}
+
+		return new GemEngine(offsets, targets);
+	}
+
+	/**
+	 * Runs rounds until the average temperature drops below 3, or for at most
+	 * 4 rounds per node, like the layouts do by default.
+	 * @param g the engine
+	 * @return the number of rounds run
+	 */
+	static int layOut(GemEngine g) {
+		int rounds = 0;
+		while(rounds < 4 * g.n) {
+			++rounds;
+			if(g.round() < 3) {
+				break;
+			}
+		}
+		return rounds;
+	}
+
+	/**
+	 * Returns the average difference between the length of an edge and the desired edge length.
+	 * @param g the engine
+	 * @return the average deviation
+	 */
+	static double edgeDeviation(GemEngine g) {
+		double sum = 0;
+		int edges = 0;
+		for(int v = 0; v < g.n; ++v) {
+			for(int e = g.offsets.get(v); e < g.offsets.get(v + 1); ++e) {
+				int u = g.targets.get(e);
+				sum += Math.abs(Math.hypot(g.x.get(v) - g.x.get(u), g.y.get(v) - g.y.get(u)) - g.desiredEdgeLength);
+				++edges;
+			}
+		}
+		return edges > 0 ? sum / edges : 0;
+	}
+
+	/**
+	 * Reports the result of a check.
+	 * @param passed true if the check has passed
+	 * @param message what was checked, with the measured values
+	 * @throws AssertionError if the check has failed
+	 */
+	static void check(boolean passed, String message) {
+		System.out.println((passed ? "ok      " : "FAILED  ") + message);
+		if(!passed) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/*
+ * Compares the repulsive forces of the grid approximation with the exact
+ * forces, and the time of a round with both. The mesh is checked on a
+ * small graph, and on nodes that are spread so far that the mesh cells
+ * are wider than the desired edge length.
+ */
+public class GemGridCheck {
+
+	public static void main(String[] args) {
+
+		GemEngine g = GemCheck.randomGraph(2000, 0.1, 2);
+		compare(g.x.array(), g.y.array(), g.n, 256, "random, 256", 0.02, 0.1);
+		GemCheck.layOut(g);
+		compare(g.x.array(), g.y.array(), g.n, 256, "laid out, 256", 0.02, 0.1);
+
+		// About 10 nodes per cell of 500 * 500, about 4 desired edge lengths wide.
+		int n = 4000;
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		SplittableRandom random = new SplittableRandom(3);
+		for(int i = 0; i < n; ++i) {
+			xs[i] = random.nextDouble() * 10000;
+			ys[i] = random.nextDouble() * 10000;
+		}
+		compare(xs, ys, n, 32, "spread out, 32", 0.02, 0.1);
+
+		benchmark(20000);
+	}
+
+	/**
+	 * Checks the average and the 99th percentile of the error of the forces
+	 * on all the nodes, relative to the exact force.
+	 */
+	private static void compare(double[] xs, double[] ys, int n, int gridSize, String name,
+			double maxMean, double maxPercentile) {
+
+		double desSquared = 128 * 128;
+		GemGridRepulsion grid = new GemGridRepulsion();
+		grid.build(xs, ys, n, gridSize);
+
+		double[] errors = new double[n];
+		double sum = 0;
+		for(int i = 0; i < n; ++i) {
+
+			double[] exact = new double[2];
+			for(int j = 0; j < n; ++j) {
+				double dx = xs[i] - xs[j];
+				double dy = ys[i] - ys[j];
+				double d2 = dx * dx + dy * dy;
+				double scale = d2 != 0 ? desSquared / d2 : 0;
+				exact[0] += dx * scale;
+				exact[1] += dy * scale;
+			}
+
+			double[] approximated = new double[2];
+			grid.accumulateRepulsion(xs[i], ys[i], desSquared, approximated);
+
+			errors[i] = Math.hypot(approximated[0] - exact[0], approximated[1] - exact[1])
+					/ Math.hypot(exact[0], exact[1]);
+			sum += errors[i];
+		}
+		Arrays.sort(errors);
+		double mean = sum / n;
+		double percentile = errors[(int) (0.99 * (n - 1))];
+
+		GemCheck.check(mean < maxMean,
+				String.format("grid force error (%s): mean %.4f < %s", name, mean, maxMean));
+		GemCheck.check(percentile < maxPercentile,
+				String.format("grid force error (%s): 99th percentile %.4f < %s", name, percentile, maxPercentile));
+	}
+
+	/**
+	 * Times rounds with the exact repulsion and with the mesh on the same
+	 * random graph, after a few rounds to warm up.
+	 */
+	private static void benchmark(int n) {
+
+		double[] perRound = new double[2];
+		RepulsionMode[] modes = { RepulsionMode.EXACT, RepulsionMode.GRID };
+		for(int m = 0; m < modes.length; ++m) {
+			GemEngine g = GemCheck.randomGraph(n, 0.1, 4);
+			g.repulsionMode = modes[m];
+			for(int r = 0; r < 3; ++r) {
+				g.round();
+			}
+			int rounds = 5;
+			long start = System.nanoTime();
+			for(int r = 0; r < rounds; ++r) {
+				g.round();
+			}
+			perRound[m] = (System.nanoTime() - start) / 1e6 / rounds;
+		}
+
+		GemCheck.check(perRound[1] < perRound[0], String.format(
+				"grid round on %d nodes: %.1f ms, exact round: %.1f ms", n, perRound[1], perRound[0]));
+	}
+}
@@ -0,0 +1,82 @@
+package prefux.action.layout.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/*
+ * Checks that an engine lays out a graph the same way whether its state is
+ * on the heap, in direct memory or mapped from files, with the exact
+ * repulsion and with the quadtree, and that the buffers that would be
+ * larger than 2 GB are refused instead of overflowing.
+ */
+public class GemMemoryCheck {
+
+	public static void main(String[] args) throws IOException {
+
+		File directory = Files.createTempDirectory("gem").toFile();
+		try {
+			same(RepulsionMode.EXACT, directory);
+			same(RepulsionMode.BARNES_HUT, directory);
+			GemCheck.check(directory.list().length == 0, "mapped files deleted");
+			tooLarge(directory);
+		} finally {
+			directory.delete();
+		}
+	}
+
+	/**
+	 * Lays out the same graph with the same seed in the three places and
+	 * checks that the positions are the same.
+	 */
+	private static void same(RepulsionMode mode, File directory) {
+
+		GemEngine heap = GemCheck.randomGraph(1000, 0.1, 11);
+		heap.repulsionMode = mode;
+		GemEngine direct = heap.moveTo(new GemMemory(true, null));
+		GemEngine mapped = heap.moveTo(new GemMemory(true, directory));
+
+		GemEngine[] runs = { heap, direct, mapped };
+		for(GemEngine g : runs) {
+			g.seed(12);
+			for(int r = 0; r < 200; ++r) {
+				g.round();
+			}
+		}
+
+		boolean same = true;
+		for(int i = 0; i < heap.n; ++i) {
+			same &= direct.x.get(i) == heap.x.get(i) && direct.y.get(i) == heap.y.get(i)
+					&& mapped.x.get(i) == heap.x.get(i) && mapped.y.get(i) == heap.y.get(i);
+		}
+		GemCheck.check(!direct.x.hasArray() && !mapped.x.hasArray() && same,
+				"same layout on the heap, in direct memory and mapped (" + mode + ")");
+	}
+
+	/**
+	 * Checks that the buffers larger than 2 GB are refused.
+	 */
+	private static void tooLarge(File directory) {
+
+		int doubles = (int) (GemMemory.MAX_BYTES / Double.BYTES) + 1;
+		GemCheck.check(refused(() -> new GemMemory(true, null).doubles(doubles)), "direct buffer over 2 GB refused");
+		GemCheck.check(refused(() -> new GemMemory(true, directory).doubles(doubles)), "mapped buffer over 2 GB refused");
+		GemCheck.check(directory.list().length == 0, "no file for a refused buffer");
+
+		GemSlotStore store = new GemSlotStore(true, null);
+		GemCheck.check(refused(() -> store.ensureCapacity(GemSlotStore.MAX_SLOTS + 1)),
+				"more than " + GemSlotStore.MAX_SLOTS + " slots refused");
+	}
+
+	/**
+	 * Returns whether an action throws an IllegalArgumentException.
+	 */
+	private static boolean refused(Runnable action) {
+		try {
+			action.run();
+			return false;
+		} catch(IllegalArgumentException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package prefux.action.layout.graph;
+
+/*
+ * Compares the single precision repulsion of the exact mode with the double
+ * precision one: the directions of the forces on the nodes, and the edge
+ * lengths of a whole layout. The kernel that the engines use is checked,
+ * which is GemVectorKernel if run.sh could add it, and the scalar kernel.
+ */
+public class GemPrecisionCheck {
+
+	public static void main(String[] args) {
+
+		GemRepulsionKernel[] kernels = { GemRepulsionKernel.INSTANCE, new GemRepulsionKernel.Scalar() };
+
+		GemEngine random = GemCheck.randomGraph(20000, 0.1, 6);
+		GemEngine laidOut = GemCheck.randomGraph(2000, 0.1, 7);
+		GemCheck.layOut(laidOut);
+		for(GemRepulsionKernel kernel : kernels) {
+			String name = kernel.getClass().getSimpleName();
+			compare(kernel, random, name + ", 20000 random", 1e-3);
+			compare(kernel, laidOut, name + ", 2000 laid out", 1e-3);
+		}
+
+		edgeLengths(2000);
+	}
+
+	/**
+	 * Checks the largest angle between the single and the double precision
+	 * force on a node, over every 10th node.
+	 */
+	private static void compare(GemRepulsionKernel kernel, GemEngine g, String name, double maxAngle) {
+
+		double desSquared = g.desiredEdgeLength * g.desiredEdgeLength;
+		float[] xs = new float[g.n];
+		float[] ys = new float[g.n];
+		for(int j = 0; j < g.n; ++j) {
+			xs[j] = (float) g.x.get(j);
+			ys[j] = (float) g.y.get(j);
+		}
+
+		double largest = 0;
+		double[] single = new double[2];
+		for(int i = 0; i < g.n; i += 10) {
+
+			double exactX = 0;
+			double exactY = 0;
+			for(int j = 0; j < g.n; ++j) {
+				double dx = g.x.get(i) - g.x.get(j);
+				double dy = g.y.get(i) - g.y.get(j);
+				double d2 = dx * dx + dy * dy;
+				double scale = d2 != 0 ? desSquared / d2 : 0;
+				exactX += dx * scale;
+				exactY += dy * scale;
+			}
+
+			single[0] = 0;
+			single[1] = 0;
+			kernel.accumulate(xs[i], ys[i], xs, ys, g.n, (float) desSquared, true, single);
+
+			double angle = Math.abs(Math.atan2(exactX * single[1] - exactY * single[0],
+					exactX * single[0] + exactY * single[1]));
+			largest = Math.max(largest, angle);
+		}
+
+		GemCheck.check(largest < maxAngle,
+				String.format("force direction (%s): largest angle %.2e < %s radians", name, largest, maxAngle));
+	}
+
+	/**
+	 * Lays out the same graph from the same positions and seed in double and
+	 * in single precision, and compares the average deviation of the edge
+	 * lengths from the desired edge length.
+	 */
+	private static void edgeLengths(int n) {
+
+		double[] deviation = new double[2];
+		for(int p = 0; p < 2; ++p) {
+			GemEngine g = GemCheck.randomGraph(n, 0, 8);
+			g.singlePrecision = p == 1;
+			GemCheck.layOut(g);
+			deviation[p] = GemCheck.edgeDeviation(g);
+		}
+
+		double difference = Math.abs(deviation[1] - deviation[0]) / deviation[0];
+		GemCheck.check(difference < 0.05, String.format(
+				"edge length deviation on %d nodes: %.2f in double, %.2f in single precision, %.1f%% apart < 5%%",
+				n, deviation[0], deviation[1], 100 * difference));
+	}
+}
@@ -0,0 +1,92 @@
+package prefux.action.layout.graph;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Checks what the restarts rely on: that a seeded engine lays out a graph
+ * the same way every time, also with Pivot MDS, the multilevel coarsening
+ * and the parallel mode, and that the best of several seeded runs has
+ * fewer crossings than a single run. The runs are made like
+ * GraphEmbedderLayout.planRestarts() makes them.
+ */
+public class GemRestartCheck {
+
+	public static void main(String[] args) {
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		repeatable(false, pool);
+		repeatable(true, pool);
+		pool.shutdown();
+
+		bestOfRuns(10, 4);
+	}
+
+	/**
+	 * Places and lays out the same graph twice with the same seed and checks
+	 * that the positions and the coarsened levels are the same.
+	 */
+	private static void repeatable(boolean parallel, ForkJoinPool pool) {
+
+		GemEngine[] runs = new GemEngine[2];
+		GemMultilevel[] hierarchies = new GemMultilevel[2];
+		for(int r = 0; r < runs.length; ++r) {
+			GemEngine g = GemCheck.randomGraph(500, 0.1, 9);
+			g.seed(42);
+			g.parallel = parallel;
+			g.pool = pool;
+			g.batchSize = 64;
+			hierarchies[r] = new GemMultilevel(GemMemory.toArray(g.offsets), GemMemory.toArray(g.targets), g.random());
+			GemPlacement.pivotMds(g, 50, pool);
+			GemCheck.layOut(g);
+			runs[r] = g;
+		}
+
+		boolean same = Arrays.equals(runs[0].x.array(), runs[1].x.array()) && Arrays.equals(runs[0].y.array(), runs[1].y.array())
+				&& hierarchies[0].getLevelCount() == hierarchies[1].getLevelCount();
+		for(int l = 0; same && l < hierarchies[0].getLevelCount() - 1; ++l) {
+			same = Arrays.equals(hierarchies[0].getParent(l), hierarchies[1].getParent(l));
+		}
+		GemCheck.check(same, "same seed, same layout" + (parallel ? " (parallel)" : ""));
+	}
+
+	/**
+	 * Lays out random graphs of 300 nodes and 330 edges with a number of
+	 * seeded runs each, and compares the crossings of the first run with
+	 * those of the run with the fewest crossings, on average over the graphs.
+	 */
+	private static void bestOfRuns(int graphs, int restarts) {
+
+		SplittableRandom seeds = new SplittableRandom(10);
+		double single = 0;
+		double best = 0;
+		for(int k = 0; k < graphs; ++k) {
+
+			GemEngine e = GemCheck.randomGraph(300, 0.1, seeds.nextLong());
+			int[] all = new int[e.n];
+			for(int i = 0; i < all.length; ++i) {
+				all[i] = i;
+			}
+
+			double fewest = Double.MAX_VALUE;
+			for(int r = 0; r < restarts; ++r) {
+				GemEngine copy = e.subgraph(all);
+				copy.seed(seeds.nextLong());
+				if(r > 0) {
+					copy.randomize();
+				}
+				GemCheck.layOut(copy);
+				double crossings = GemQuality.score(copy, QualityMeasure.CROSSINGS);
+				if(r == 0) {
+					single += crossings / graphs;
+				}
+				fewest = Math.min(fewest, crossings);
+			}
+			best += fewest / graphs;
+		}
+
+		GemCheck.check(best < single, String.format("crossings: best of %d runs %.1f < single run %.1f",
+				restarts, best, single));
+	}
+}
@@ -0,0 +1,30 @@
+#!/bin/sh
+# Compiles the classes of GEM that do not need Prefux or JavaFX together
+# with the checks in this directory, and runs the checks. Only needs a JDK.
+#
+# Usage: test/run.sh [check ...]
+# Without arguments all the checks are run, for example:
+#   test/run.sh GemBarnesHutCheck
+set -e
+cd "$(dirname "$0")/.."
+
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+sources="ConvergencePolicy.java GemComponents.java GemEngine.java GemGridRepulsion.java
+	GemMemory.java GemMultilevel.java GemPlacement.java GemQuadTree.java GemQuality.java GemRepulsionKernel.java
+	GemSlotStore.java GemStepper.java InitialPlacement.java QualityMeasure.java RepulsionMode.java
+	test/*.java"
+
+# The vector kernel is added if the JDK has the Vector API.
+modules=--add-modules=jdk.incubator.vector
+if ! javac $modules -d "$out" $sources vector/GemVectorKernel.java 2>/dev/null; then
+	modules=
+	javac -d "$out" $sources
+fi
+
+checks=${*:-$(cd test && ls *Check.java | grep -v '^GemCheck.java$' | sed 's/\.java$//')}
+for check in $checks; do
+	echo "== $check"
+	java $modules -cp "$out" prefux.action.layout.graph."$check"
+done